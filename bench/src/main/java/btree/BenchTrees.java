@@ -0,0 +1,76 @@
+package btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import bterrors.BtreeException;
+
+/**
+ * keys and tree files shared by the benchmarks. Keys are random sequences of the
+ * given length, trees are written to the temp directory and removed afterwards
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+class BenchTrees {
+	final static int treekeys = 200000; // keys inserted into benchmark trees
+	final static int probes = 1 << 16; // lookups cycled through by lookup benchmarks
+
+	// n random keys of seqlen letters, the same seed gives the same keys
+	static long[] randomKeys(int n, int seqlen, long seed) {
+		Random random = new Random(seed);
+		long mask = (1L << (seqlen << 1)) - 1;
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = random.nextLong() & mask;
+		return keys;
+	}
+
+	// same keys in ascending order
+	static long[] sortedKeys(int n, int seqlen, long seed) {
+		long[] keys = randomKeys(n, seqlen, seed);
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	// lookups for a tree built from randomKeys(treekeys, seqlen, 1), half of them hit
+	static long[] probeKeys(int seqlen) {
+		long[] inserted = randomKeys(treekeys, seqlen, 1);
+		long[] misses = randomKeys(probes, seqlen, 2);
+		long[] keys = new long[probes];
+		Random random = new Random(3);
+		for (int i = 0; i < probes; i++)
+			keys[i] = (i & 1) == 0 ? inserted[random.nextInt(treekeys)] : misses[i];
+		return keys;
+	}
+
+	// base name for a new tree, the tree file is <base>.<degree>
+	static String tempBase() throws IOException {
+		File f = File.createTempFile("btree-bench", "");
+		f.delete();
+		return f.getPath();
+	}
+
+	// writes a tree of randomKeys(treekeys, seqlen, 1), returns the tree file name
+	static String buildTree(int degree, int seqlen) throws IOException, BtreeException {
+		return buildTree(degree, seqlen, treekeys);
+	}
+
+	// same as above with randomKeys(keys, seqlen, 1)
+	static String buildTree(int degree, int seqlen, int keys) throws IOException, BtreeException {
+		String base = tempBase();
+		BTree tree = new BTree(base, degree, 1000, new BTreeOptions().seqLen(seqlen));
+		for (long key : randomKeys(keys, seqlen, 1))
+			tree.addCount(key, 1);
+		tree.shutdown();
+		return base + "." + degree;
+	}
+
+	// removes a tree file and its sidecars
+	static void delete(String treefname) {
+		new File(treefname).delete();
+		new File(BTree.bloomName(treefname)).delete();
+	}
+}
@@ -0,0 +1,73 @@
+package btree;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cache.AddToCache with twice as many distinct nodes as the cache holds, so
+ * every add evicts. Nodes are real nodes of the tree that owns the cache, the
+ * tree is built from enough keys to have more than twice the cache size in nodes
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheBenchmark {
+	@Param({ "4", "32", "85" })
+	public int degree;
+
+	@Param({ "100", "10000" })
+	public int cacheSize;
+
+	@Param({ "LRU", "CLOCK" })
+	public BTreeOptions.CachePolicy policy;
+
+	private String treefname; // tree the nodes come from
+	private BTree tree; // tree with the cache under test
+	private BTree.BTreeNode[] nodes; // nodes added in turn
+	private int next; // next node to add
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		// random keys fill nodes to about 70%, 4 * degree keys per wanted node leave a margin
+		int keys = Math.max(BenchTrees.treekeys, 4 * cacheSize * degree);
+		treefname = BenchTrees.buildTree(degree, 31, keys);
+		tree = new BTree(treefname, true, false, cacheSize, new BTreeOptions().cachePolicy(policy));
+		if (tree.getNodeCount() <= 2L * cacheSize)
+			throw new IllegalStateException("tree of " + tree.getNodeCount() + " nodes does not overflow the cache");
+		nodes = new BTree.BTreeNode[2 * cacheSize];
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = tree.getNode(i); // read through the cache under test, it is full afterwards
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		tree.shutdown();
+		BenchTrees.delete(treefname);
+	}
+
+	@Benchmark
+	public void addToCache() throws Exception {
+		tree.cache.AddToCache(nodes[next]);
+		if (++next == nodes.length)
+			next = 0;
+	}
+}
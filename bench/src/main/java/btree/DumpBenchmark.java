@@ -0,0 +1,64 @@
+package btree;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * text dump of a whole tree of BenchTrees.treekeys inserted keys
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DumpBenchmark {
+	@Param({ "4", "32", "85" })
+	public int degree;
+
+	@Param({ "0", "100", "10000" })
+	public int cacheSize;
+
+	@Param({ "7", "12", "21" })
+	public int seqLen;
+
+	private String treefname; // tree built for the parameters
+	private String dumpfname; // dump written by every invocation
+	private BTree tree; // read only tree
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		treefname = BenchTrees.buildTree(degree, seqLen);
+		dumpfname = treefname + ".dump";
+		tree = new BTree(treefname, true, false, cacheSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		tree.shutdown();
+		BenchTrees.delete(treefname);
+		new File(dumpfname).delete();
+	}
+
+	@Benchmark
+	public void dump() throws Exception {
+		tree.dump(seqLen, dumpfname);
+	}
+}
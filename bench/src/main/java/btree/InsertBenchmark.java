@@ -0,0 +1,80 @@
+package btree;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * insertKey of a batch of keys into an empty tree, keys in random or ascending
+ * order. Short sequence lengths repeat keys, those inserts only find the key
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InsertBenchmark {
+	private final static int batch = 20000; // keys inserted per invocation
+
+	@Param({ "4", "32", "85" })
+	public int degree;
+
+	@Param({ "0", "100", "10000" })
+	public int cacheSize;
+
+	@Param({ "7", "12", "21" })
+	public int seqLen;
+
+	@Param({ "random", "sorted" })
+	public String order;
+
+	private String base; // tree file name without degree
+	private long[] keys; // keys inserted
+	private BTree tree; // empty tree for the next invocation
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		base = BenchTrees.tempBase();
+		keys = order.equals("sorted") ? BenchTrees.sortedKeys(batch, seqLen, 6) : BenchTrees.randomKeys(batch, seqLen, 6);
+	}
+
+	@Setup(Level.Invocation)
+	public void create() throws Exception {
+		tree = new BTree(base, degree, cacheSize);
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() throws Exception {
+		tree.shutdown();
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() {
+		new File(base + "." + degree).delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(batch)
+	public void insertKey() throws Exception {
+		for (long key : keys)
+			tree.insertKey(new BTreeObject(key, 1));
+	}
+}
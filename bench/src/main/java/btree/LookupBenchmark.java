@@ -0,0 +1,110 @@
+package btree;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * lookup of single keys, half of them in the tree, in a read only tree. Warm
+ * looks up in a tree whose cache has seen every probe. Cold opens the tree again
+ * before every batch of batch lookups, so every batch starts with an empty cache
+ * (the file stays in the page cache of the system); the time is per lookup
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+	final static int batch = 256; // lookups per cold invocation
+	@Param({ "4", "32", "85" })
+	public int degree;
+
+	@Param({ "0", "100", "10000" })
+	public int cacheSize;
+
+	@Param({ "7", "12", "21" })
+	public int seqLen;
+
+	private String treefname; // tree built for the parameters
+	private long[] probes; // keys looked up
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		treefname = BenchTrees.buildTree(degree, seqLen);
+		probes = BenchTrees.probeKeys(seqLen);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() {
+		BenchTrees.delete(treefname);
+	}
+
+	@State(Scope.Thread)
+	public static class Warm {
+		BTree tree;
+		int next;
+
+		@Setup(Level.Trial)
+		public void open(LookupBenchmark b) throws Exception {
+			tree = new BTree(b.treefname, true, false, b.cacheSize);
+			for (long key : b.probes)
+				tree.lookup(new BTreeObject(key));
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws Exception {
+			tree.shutdown();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cold {
+		BTree tree;
+		int next;
+
+		// a batch of lookups takes well over a millisecond, long enough for
+		// invocation level setup
+		@Setup(Level.Invocation)
+		public void open(LookupBenchmark b) throws Exception {
+			tree = new BTree(b.treefname, true, false, b.cacheSize);
+		}
+
+		@TearDown(Level.Invocation)
+		public void close() throws Exception {
+			tree.shutdown();
+		}
+	}
+
+	@Benchmark
+	public boolean lookupWarm(Warm w) throws Exception {
+		return w.tree.lookup(new BTreeObject(probes[w.next++ & (BenchTrees.probes - 1)])).exact;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(batch)
+	public int lookupCold(Cold c) throws Exception {
+		int found = 0;
+		for (int i = 0; i < batch; i++)
+			if (c.tree.lookup(new BTreeObject(probes[c.next++ & (BenchTrees.probes - 1)])).exact)
+				found++;
+		return found;
+	}
+}
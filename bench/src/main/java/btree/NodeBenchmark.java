@@ -0,0 +1,128 @@
+package btree;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * single node operations: binary search in a full node and splitting a full leaf
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NodeBenchmark {
+	final static int batch = 256; // leaves split per invocation
+	@Param({ "4", "32", "85" })
+	public int degree;
+
+	private String base; // tree file name without degree
+	private BTree tree; // tree whose root leaf is full
+	private long[] probes; // keys searched for
+	private int next; // next probe
+
+	// fresh tree with a full root leaf, 2 * degree - 1 keys
+	static BTree fill(String base, int degree) throws Exception {
+		BTree tree = new BTree(base, degree, 0);
+		for (long key : BenchTrees.randomKeys(2 * degree - 1, 31, 4))
+			tree.insertKey(new BTreeObject(key, 1));
+		return tree;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		base = BenchTrees.tempBase();
+		probes = BenchTrees.randomKeys(BenchTrees.probes, 31, 5);
+		tree = fill(base, degree);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		tree.shutdown();
+		new File(base + "." + degree).delete();
+	}
+
+	@Benchmark
+	public int searchkey() {
+		return tree.rootnode.searchkey(probes[next++ & (BenchTrees.probes - 1)]);
+	}
+
+	// every split needs a full node again. One tree per iteration, its batch of
+	// leaves is filled again before every invocation, which splits all of them
+	@State(Scope.Thread)
+	public static class Split {
+		private String base; // tree file name without degree
+		private int degree; // degree of the tree
+		private BTree tree; // tree the leaves belong to, without cache
+		private BTree.BTreeNode[] leaves = new BTree.BTreeNode[batch]; // full leaves
+		private long[] splitkeys = new long[batch]; // key that does not fit each leaf
+		private long seed; // picks the next split keys
+
+		@Setup(Level.Trial)
+		public void setup(NodeBenchmark b) throws Exception {
+			base = BenchTrees.tempBase();
+			degree = b.degree;
+		}
+
+		@Setup(Level.Iteration)
+		public void open() throws Exception {
+			tree = new BTree(base, degree, 0);
+			for (int i = 0; i < batch; i++)
+				leaves[i] = tree.new BTreeNode(i, true);
+		}
+
+		// leaves hold the even keys 2 .. 4 * degree - 2, split keys are odd
+		@Setup(Level.Invocation)
+		public void refill() throws Exception {
+			int full = 2 * degree - 1;
+			for (int i = 0; i < batch; i++) {
+				BTree.BTreeNode leaf = leaves[i];
+				leaf.reuse(i, true);
+				for (int j = 0; j < full; j++)
+					leaf.insertkey(2 * j + 2, 1, j, null);
+				splitkeys[i] = 2 * (seed++ % (full + 1)) + 1;
+			}
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() throws Exception {
+			tree.shutdown();
+		}
+
+		@TearDown(Level.Trial)
+		public void teardown() {
+			new File(base + "." + degree).delete();
+		}
+	}
+
+	// splits of a full leaf, each writes both halves like a split in a tree does
+	@Benchmark
+	@OperationsPerInvocation(batch)
+	public void splitNode(Split split, Blackhole hole) throws Exception {
+		for (int i = 0; i < batch; i++) {
+			BTree.BTreeNode leaf = split.leaves[i];
+			long key = split.splitkeys[i];
+			hole.consume(leaf.splitNode(key, 1, leaf.searchkey(key), null));
+		}
+	}
+}
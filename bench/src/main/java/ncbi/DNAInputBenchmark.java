@@ -0,0 +1,80 @@
+package ncbi;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DNAInput reading every sequence of a generated gbk file, time per letter of
+ * the file
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DNAInputBenchmark {
+	private final static int letters = 1 << 18; // letters in the generated file
+
+	@Param({ "7", "12", "21" })
+	public int seqLen;
+
+	private File gbk; // generated file
+
+	// one ORIGIN section in the usual layout, 60 letters per numbered line with an
+	// n every 10000 letters
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		gbk = File.createTempFile("dna-bench", ".gbk");
+		Random random = new Random(7);
+		BufferedWriter out = new BufferedWriter(new FileWriter(gbk));
+		out.write("LOCUS       BENCH\nORIGIN\n");
+		for (int i = 0; i < letters; i += 60) {
+			out.write(String.format("%9d", i + 1));
+			for (int j = 0; j < 60; j++) {
+				if (j % 10 == 0)
+					out.write(' ');
+				out.write((i + j) % 10000 == 9999 ? 'n' : "acgt".charAt(random.nextInt(4)));
+			}
+			out.write('\n');
+		}
+		out.write("//\n");
+		out.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() {
+		gbk.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(letters)
+	public long parse() throws Exception {
+		DNAInput input = new DNAInput(gbk.getPath(), seqLen);
+		long sum = 0;
+		while (input.hasNext())
+			sum += input.Next();
+		return sum;
+	}
+}
@@ -1,19 +1,22 @@
+import java.io.File;
 import java.io.IOException;
 
-import bterrors.BTreeBadMetadata;
-import bterrors.BTreeFullNode;
-import bterrors.BTreeNoInternalNodeChild;
-import bterrors.BTreeNonExactNonLeaf;
-import bterrors.BTreeNotFullNode;
-import bterrors.BTreeWrongBlockID;
-import bterrors.BTreeWrongKeyOrder;
-import bterrors.DNASequenceNotFound;
-import bterrors.DNAWrongSequenceLength;
+import bterrors.BtreeException;
+import bterrors.DNATreeException;
 import btree.BTree;
-import btree.BTree.NearestSearchResult;
-import btree.BTreeObject;
+import btree.BTreeOptions;
+import btree.CommandOptions;
+import btree.ExternalKeySorter;
+import btree.KeyCountAggregator;
 import btree.DebugPrint;
+import btree.Metrics;
+import btree.ShardedTree;
+import ncbi.BatchedKeySource;
 import ncbi.DNAInput;
+import ncbi.DNAKeySource;
+import ncbi.MultiDNAInput;
+import ncbi.ParallelDNAInput;
+import ncbi.ShardedDNAInput;
 /**
  * 
  * @author amandadelu, pjcory, joshsanders
@@ -22,20 +25,48 @@ import ncbi.DNAInput;
 public class GeneBankCreateBTree {
     public static void usage() {
     	System.out.println("java GeneBankCreateBTree <0/1(no/with Cache)> <degree> <gbk file>"
-    			+ " <sequence length> <cache size> [<debug level>]");
+    			+ " <sequence length>[,<sequence length>...] <cache size> [<debug level>]"
+    			+ " [--mmap] [--cachepolicy=<lru/clock>] [--writebehind=<MB>] [--parsethreads=<n>] [--shards=<n>] [--aggregate=<MB>] [--ordered] [--canonical] [--linkedleaves] [--compressed] [--maxcounts] [--bloom[=<false positive rate>]] [--bulk [--fill=<0..1>] [--sortbuffer=<keys>]] [--metrics[=<json file>]]");
     }
-	public static void main(String[] args) throws IOException, BTreeBadMetadata, BTreeWrongBlockID, DNAWrongSequenceLength, InterruptedException, DNASequenceNotFound, BTreeNonExactNonLeaf, BTreeNotFullNode, BTreeWrongKeyOrder, BTreeNoInternalNodeChild, BTreeFullNode {
+	public static void main(String[] args) throws IOException, InterruptedException, BtreeException, DNATreeException {
 		boolean usecache;
 		int degree;
 		String fname;
-		int seqlen;
+		int[] seqlens;
 		int cachesize;
+		double fill;
+		double bloom;
+		int sortbuffer;
+		int writebehind;
+		int parsethreads;
+		int shards;
+		int aggregate;
+		BTreeOptions.CachePolicy cachepolicy;
 
+		CommandOptions options = new CommandOptions(args);
+		args = options.positional();
 		if (args.length< 5 || args.length > 6) {
 			usage();
 			return;
 		}
 		try {
+			options.checkKnown("mmap", "cachepolicy", "writebehind", "parsethreads", "shards", "aggregate", "bulk", "fill", "sortbuffer", "ordered", "canonical", "linkedleaves", "compressed", "maxcounts", "bloom", "metrics");
+			fill = options.getDouble("fill", 1.0);
+			if (fill <= 0 || fill > 1) throw new IllegalArgumentException();
+			String rate = options.get("bloom", null); //plain --bloom gives 1% false positives
+			bloom = rate == null ? 0 : rate.isEmpty() ? 0.01 : Double.parseDouble(rate);
+			if (rate != null && (bloom <= 0 || bloom >= 1)) throw new IllegalArgumentException();
+			cachepolicy = BTreeOptions.CachePolicy.valueOf(options.get("cachepolicy", "clock").toUpperCase());
+			writebehind = options.getInt("writebehind", 0);
+			if (writebehind < 0) throw new IllegalArgumentException();
+			sortbuffer = options.getInt("sortbuffer", 8 << 20);
+			parsethreads = options.getInt("parsethreads", 0);
+			if (parsethreads < 0) throw new IllegalArgumentException();
+			shards = options.getInt("shards", 1);
+			if (shards < 1) throw new IllegalArgumentException();
+			aggregate = options.getInt("aggregate", 0);
+			if (aggregate < 0) throw new IllegalArgumentException();
+			if (sortbuffer < 1) throw new IllegalArgumentException();
 			switch(Integer.parseInt(args[0])) {
 			case 0: usecache=false; break;
 			case 1: usecache=true; break;
@@ -44,8 +75,18 @@ public class GeneBankCreateBTree {
 			degree = Integer.parseInt(args[1]);
 			//if (degree < 2) throw new IllegalArgumentException();
 			fname = args[2];
-			seqlen = Integer.parseInt(args[3]);
-			if (seqlen < 1 || seqlen > 31) throw new IllegalArgumentException();
+			String[] lengths = args[3].split(","); //several lengths are built from one pass over the file
+			seqlens = new int[lengths.length];
+			for (int i = 0; i < lengths.length; i++) {
+				seqlens[i] = Integer.parseInt(lengths[i]);
+				if (seqlens[i] < 1 || seqlens[i] > 31) throw new IllegalArgumentException();
+				for (int j = 0; j < i; j++) {
+					if (seqlens[j] == seqlens[i]) throw new IllegalArgumentException();
+				}
+			}
+			if (seqlens.length > 1 && parsethreads > 0) throw new IllegalArgumentException();
+			if (seqlens.length > 1 && shards > 1) throw new IllegalArgumentException();
+			if (shards > 1) ShardedTree.evenSplits(seqlens[0], shards); //no more shards than keys
 			cachesize = Integer.parseInt(args[4]);
 			if (usecache) {
 				  if(cachesize < 1)
@@ -64,36 +105,31 @@ public class GeneBankCreateBTree {
 			return;
 		}
 		
-		BTree dnatree;
-		String treefname = fname + ".btree.data."+seqlen;
-		if (degree>=2) {
-			dnatree = new BTree(treefname, degree, cachesize);
+		boolean ordered = options.has("ordered"); //keys sort like the sequences, recorded in the tree
+		boolean canonical = options.has("canonical"); //sequence and reverse complement counted together, recorded too
+		BTreeOptions treeoptions = new BTreeOptions().mapped(options.has("mmap")).cachePolicy(cachepolicy)
+				.writeBehind((long) writebehind << 20).orderedKeys(ordered).canonical(canonical)
+				.linkedLeaves(options.has("linkedleaves")).compressed(options.has("compressed"))
+				.maxCounts(options.has("maxcounts")).metrics(options.has("metrics"));
+		File tempdir = new File(fname).getAbsoluteFile().getParentFile();
+		if (seqlens.length > 1) {
+			buildTrees(fname, seqlens, ordered, canonical, degree, cachesize, treeoptions, options, aggregate, sortbuffer, fill, bloom, tempdir);
+			return;
+		}
+		int seqlen = seqlens[0];
+		DNAKeySource dnaparser;
+		if (parsethreads > 0) {
+			dnaparser = new ParallelDNAInput(fname, seqlen, parsethreads, ordered, canonical);
 		} else {
-			dnatree = new BTree(treefname, false, true, cachesize);
+			dnaparser = new DNAInput(fname, seqlen, ordered, canonical);
 		}
-		DNAInput dnaparser = new DNAInput(fname, seqlen);
-		long start = System.currentTimeMillis();
-		while (dnaparser.hasNext()) {
-			long dnakey = dnaparser.Next();
-			BTreeObject newkey = new BTreeObject(dnakey);
-			NearestSearchResult check = dnatree.lookup(newkey);
-			if (check.exact) {
-				check.foundkey.IncCounter();
-				check.saveNode(); 
-				//need to save node explicitly incase we do not use cache
-				if (DebugPrint.debuglevel>0) {
-					DebugPrint.message(String.format("Incrementing key %d to %d count", check.foundkey.getKey(), check.foundkey.getCounter()));
-				}
-			} else {
-				newkey.IncCounter();
-				//newkey.IncCounter();
-				dnatree.insertToFoundLoc(check);
-				if (DebugPrint.debuglevel>0) {
-					DebugPrint.message(String.format("Inserting key %d", newkey.getKey()));
-				}
-			}
-			
+		if (shards > 1) {
+			buildShards(fname, seqlen, shards, dnaparser, degree, cachesize, treeoptions, options, aggregate, sortbuffer, fill, bloom, tempdir);
+			return;
 		}
+		BTree dnatree = openTree(fname + ".btree.data." + seqlen, seqlen, degree, cachesize, treeoptions);
+		long start = System.currentTimeMillis();
+		buildTree(dnatree, dnaparser, options, aggregate, sortbuffer, fill, bloom, tempdir);
 		if (DebugPrint.debuglevel>=0) {
 			if (DebugPrint.debuglevel>0) {
 				dnatree.dump(seqlen, "dump");
@@ -102,9 +138,170 @@ public class GeneBankCreateBTree {
 			DebugPrint.message("Finished in " + (System.currentTimeMillis()-start) + " ms");
 		}
 		dnatree.shutdown();
+		if (options.has("metrics")) {
+			Metrics.writeJSON(options.get("metrics", ""), dnatree.getMetrics().toJSON());
+		}
 		
 		
 
 	}
+	//creates the tree file treefname for one sequence length, degree below 2 picks the optimal degree
+	private static BTree openTree(String treefname, int seqlen, int degree, int cachesize, BTreeOptions treeoptions) throws IOException, BtreeException {
+		treeoptions.seqLen(seqlen); //new tree remembers its sequence length
+		if (degree>=2) {
+			return new BTree(treefname, degree, cachesize, treeoptions);
+		} else {
+			return new BTree(treefname, false, true, cachesize, treeoptions);
+		}
+	}
+	//reads all sequences from dnaparser into dnatree the way the options ask for,
+	//then writes the Bloom filter sidecar if bloom is a false positive rate above 0
+	private static void buildTree(BTree dnatree, DNAKeySource dnaparser, CommandOptions options, int aggregate, int sortbuffer, double fill, double bloom, File tempdir) throws IOException, InterruptedException, BtreeException, DNATreeException {
+		if (aggregate > 0) {
+			//count keys in memory first, the tree sees every distinct key once with its total
+			KeyCountAggregator counter = new KeyCountAggregator((long) aggregate << 20, tempdir);
+			while (dnaparser.hasNext()) {
+				counter.add(dnaparser.Next());
+			}
+			if (options.has("bulk")) {
+				dnatree.bulkLoad(counter.finish(), fill);
+			} else {
+				dnatree.addCounts(counter.finish());
+			}
+			counter.close();
+		} else if (options.has("bulk")) {
+			//sort all keys first, then write the tree bottom up in one sequential pass
+			ExternalKeySorter sorter = new ExternalKeySorter(sortbuffer, tempdir);
+			while (dnaparser.hasNext()) {
+				sorter.add(dnaparser.Next());
+			}
+			dnatree.bulkLoad(sorter.finish(), fill);
+			sorter.close();
+		} else {
+			//one cursor for all keys, a key costs no allocation once the cache is warm
+			BTree.KeyCursor cursor = dnatree.keyCursor();
+			while (dnaparser.hasNext()) {
+				long dnakey = dnaparser.Next();
+				boolean exact = cursor.seek(dnakey);
+				long count = cursor.add(1); //saves the node too, also without cache
+				if (DebugPrint.debuglevel>0) {
+					if (exact) {
+						DebugPrint.message(String.format("Incrementing key %d to %d count", dnakey, count));
+					} else {
+						DebugPrint.message(String.format("Inserting key %d", dnakey));
+					}
+				}
+			}
+		}
+		if (bloom > 0) {
+			dnatree.writeBloomFilter(bloom);
+		}
+	}
+	//parses the gbk file once for all sequence lengths, every tree is built on its own thread
+	private static void buildTrees(String fname, int[] seqlens, boolean ordered, boolean canonical, int degree, int cachesize, BTreeOptions treeoptions,
+			CommandOptions options, int aggregate, int sortbuffer, double fill, double bloom, File tempdir)
+			throws IOException, InterruptedException, BtreeException, DNATreeException {
+		BTree[] trees = new BTree[seqlens.length];
+		for (int i = 0; i < seqlens.length; i++) {
+			trees[i] = openTree(fname + ".btree.data." + seqlens[i], seqlens[i], degree, cachesize, treeoptions);
+		}
+		MultiDNAInput dnaparser = new MultiDNAInput(fname, seqlens, ordered, canonical);
+		BatchedKeySource[] sources = new BatchedKeySource[seqlens.length];
+		String[] names = new String[seqlens.length];
+		String[] dumps = new String[seqlens.length];
+		for (int i = 0; i < seqlens.length; i++) {
+			sources[i] = dnaparser.source(i);
+			names[i] = "btree-build-" + seqlens[i];
+			dumps[i] = "dump." + seqlens[i];
+		}
+		long start = System.currentTimeMillis();
+		buildAll(trees, sources, names, dumps, seqlens, options, aggregate, sortbuffer, fill, bloom, tempdir);
+		if (DebugPrint.debuglevel>=0) {
+			DebugPrint.message("Finished in " + (System.currentTimeMillis()-start) + " ms");
+		}
+		if (options.has("metrics")) {
+			//one object per tree by sequence length
+			StringBuilder json = new StringBuilder("{");
+			for (int i = 0; i < seqlens.length; i++) {
+				json.append(i > 0 ? "," : "").append('"').append(seqlens[i]).append("\":").append(trees[i].getMetrics().toJSON());
+			}
+			Metrics.writeJSON(options.get("metrics", ""), json.append('}').toString());
+		}
+	}
+	//splits the keys by range over shards trees, one reader routes every batch of keys
+	//to the threads building the shards. The manifest <gbk file>.btree.data.<length>.shards
+	//records the split points and names the shard files <gbk file>.btree.data.<length>.shard<i>.<degree>
+	private static void buildShards(String fname, int seqlen, int shards, DNAKeySource dnaparser, int degree, int cachesize, BTreeOptions treeoptions,
+			CommandOptions options, int aggregate, int sortbuffer, double fill, double bloom, File tempdir)
+			throws IOException, InterruptedException, BtreeException, DNATreeException {
+		String basename = fname + ".btree.data." + seqlen;
+		int shardcache = cachesize > 0 ? Math.max(1, cachesize / shards) : 0; //the cache is shared out
+		BTree[] trees = new BTree[shards];
+		for (int i = 0; i < shards; i++) {
+			trees[i] = openTree(basename + ".shard" + i, seqlen, degree, shardcache, treeoptions);
+		}
+		ShardedDNAInput router = new ShardedDNAInput(dnaparser, ShardedTree.evenSplits(seqlen, shards));
+		BatchedKeySource[] sources = new BatchedKeySource[shards];
+		String[] names = new String[shards];
+		int[] seqlens = new int[shards];
+		for (int i = 0; i < shards; i++) {
+			sources[i] = router.source(i);
+			names[i] = "btree-build-shard" + i;
+			seqlens[i] = seqlen;
+		}
+		long start = System.currentTimeMillis();
+		buildAll(trees, sources, names, null, seqlens, options, aggregate, sortbuffer, fill, bloom, tempdir);
+		ShardedTree tree = new ShardedTree(trees, seqlen, router.splits());
+		tree.writeManifest(basename + ".shards");
+		if (DebugPrint.debuglevel>=0) {
+			if (DebugPrint.debuglevel>0) {
+				//the shards in order hold the keys in order, one dump of all of them
+				ShardedTree built = new ShardedTree(basename + ".shards", 0, new BTreeOptions());
+				built.dump(seqlen, "dump");
+				built.shutdown();
+			}
+			DebugPrint.message("Finished in " + (System.currentTimeMillis()-start) + " ms");
+		}
+		if (options.has("metrics")) {
+			Metrics.writeJSON(options.get("metrics", ""), tree.metricsJSON());
+		}
+	}
+	//builds every tree from its source on a thread of its own and shuts it down, with
+	//debug level above 0 the tree is dumped to its dump file first if there is one
+	private static void buildAll(final BTree[] trees, final BatchedKeySource[] sources, String[] names, final String[] dumps, final int[] seqlens,
+			final CommandOptions options, final int aggregate, final int sortbuffer, final double fill, final double bloom, final File tempdir)
+			throws IOException, InterruptedException, BtreeException, DNATreeException {
+		final Exception[] errors = new Exception[trees.length];
+		Thread[] builders = new Thread[trees.length];
+		for (int i = 0; i < trees.length; i++) {
+			final int n = i;
+			builders[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						buildTree(trees[n], sources[n], options, aggregate, sortbuffer, fill, bloom, tempdir);
+						if (DebugPrint.debuglevel>0 && dumps != null) {
+							trees[n].dump(seqlens[n], dumps[n]);
+						}
+						trees[n].shutdown();
+					} catch (Exception e) {
+						errors[n] = e;
+					} finally {
+						sources[n].close(); //reader must not wait for a tree that failed
+					}
+				}
+			}, names[i]);
+			builders[i].start();
+		}
+		for (Thread t : builders) {
+			t.join();
+		}
+		for (Exception e : errors) {
+			if (e instanceof IOException) throw (IOException) e;
+			if (e instanceof BtreeException) throw (BtreeException) e;
+			if (e instanceof DNATreeException) throw (DNATreeException) e;
+			if (e instanceof InterruptedException) throw (InterruptedException) e;
+			if (e != null) throw new RuntimeException(e);
+		}
+	}
 
 }
@@ -0,0 +1,76 @@
+import java.io.IOException;
+
+import bterrors.BtreeException;
+import btree.BTree;
+import btree.BTreeOptions;
+import btree.CommandOptions;
+import btree.DebugPrint;
+/**
+ * writes all sequences of a tree with their counts as a binary stream of
+ * big endian long pairs (key, count) in key order
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class GeneBankDump {
+    public static void usage() {
+    	System.out.println("java GeneBankDump <0/1(no/with Cache)> <btree file> <dump file>"
+    			+ " <cache size> [<debug level>]"
+    			+ " [--mmap] [--parts=<n>] [--readahead=<nodes>]");
+    }
+	public static void main(String[] args) throws IOException, InterruptedException, BtreeException {
+		boolean usecache;
+		String btreefname;
+		String dumpfname;
+		int cachesize;
+		int parts;
+		int readahead;
+
+		CommandOptions options = new CommandOptions(args);
+		args = options.positional();
+		if (args.length< 4 || args.length > 5) {
+			usage();
+			return;
+		}
+		try {
+			options.checkKnown("mmap", "parts", "readahead");
+			parts = options.getInt("parts", 1);
+			if (parts < 1) throw new IllegalArgumentException();
+			readahead = options.getInt("readahead", 16);
+			if (readahead < 0) throw new IllegalArgumentException();
+			switch(Integer.parseInt(args[0])) {
+			case 0: usecache=false; break;
+			case 1: usecache=true; break;
+			default: throw new IllegalArgumentException();
+			}
+			btreefname = args[1];
+			dumpfname = args[2];
+			cachesize = Integer.parseInt(args[3]);
+			if (usecache) {
+				  if(cachesize < 1)
+					  throw new IllegalArgumentException();
+			} else cachesize=0;
+
+			if (args.length == 5) {
+				DebugPrint.debuglevel = Integer.parseInt(args[4]);
+				if (DebugPrint.debuglevel < -1 || DebugPrint.debuglevel > 1) {
+					throw new IllegalArgumentException();
+				}
+			}
+
+		} catch(Exception e) {
+			usage();
+			return;
+		}
+
+		BTree dnatree = new BTree(btreefname, true, false, cachesize,
+				new BTreeOptions().mapped(options.has("mmap")).concurrent(parts > 1));
+		long start = System.currentTimeMillis();
+		//every part is a range of keys written by its own thread to <dump file>.<part>
+		int written = dnatree.dumpBinary(dumpfname, parts, readahead);
+		if (DebugPrint.debuglevel>=0) {
+			DebugPrint.message("Finished " + written + " part(s) in " + (System.currentTimeMillis()-start) + " ms");
+		}
+		dnatree.shutdown();
+	}
+
+}
@@ -0,0 +1,61 @@
+import java.io.IOException;
+
+import bterrors.BtreeException;
+import btree.BTree;
+import btree.CommandOptions;
+import btree.DebugPrint;
+/**
+ * rewrites a finished tree into a new file with the nodes in lookup order, top
+ * levels breadth first and every subtree below them in one run, so searches
+ * on a cold cache seek less
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class GeneBankRelayout {
+    public static void usage() {
+    	System.out.println("java GeneBankRelayout <btree file> <output file> [<debug level>]"
+    			+ " [--layout=veb|dfs] [--bfsnodes=<n>]");
+    }
+	public static void main(String[] args) throws IOException, BtreeException {
+		String btreefname;
+		String outfname;
+		BTree.Layout layout;
+		int bfsnodes;
+
+		CommandOptions options = new CommandOptions(args);
+		args = options.positional();
+		if (args.length < 2 || args.length > 3) {
+			usage();
+			return;
+		}
+		try {
+			options.checkKnown("layout", "bfsnodes");
+			layout = BTree.Layout.valueOf(options.get("layout", "veb").toUpperCase());
+			bfsnodes = options.getInt("bfsnodes", 1024);
+			if (bfsnodes < 1) throw new IllegalArgumentException();
+			btreefname = args[0];
+			outfname = args[1];
+
+			if (args.length == 3) {
+				DebugPrint.debuglevel = Integer.parseInt(args[2]);
+				if (DebugPrint.debuglevel < -1 || DebugPrint.debuglevel > 1) {
+					throw new IllegalArgumentException();
+				}
+			}
+
+		} catch(Exception e) {
+			usage();
+			return;
+		}
+
+		BTree dnatree = new BTree(btreefname, true, false, 0); // nodes are read once each, no cache
+		long start = System.currentTimeMillis();
+		long written = dnatree.relayout(outfname, layout, bfsnodes);
+		if (DebugPrint.debuglevel>=0) {
+			DebugPrint.message("Wrote " + written + " of " + dnatree.getNodeCount() + " nodes in "
+					+ (System.currentTimeMillis()-start) + " ms");
+		}
+		dnatree.shutdown();
+	}
+
+}
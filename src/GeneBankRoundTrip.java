@@ -0,0 +1,146 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * regression check for the tree formats and build modes. Builds the tree of a
+ * small gbk file once plainly and once with every format flag and build option,
+ * and compares the binary dump and the search results of each with the plain
+ * tree. Search options are checked the same way on the plain tree. Everything
+ * is written to a temporary directory, prints OK or DIFF per mode and fails if
+ * any mode differs
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class GeneBankRoundTrip {
+	private final static int degree = 4; // small nodes, so the tree has levels and splits
+
+	// build options compared with the plain tree
+	private final static String[] buildmodes = { "--compressed", "--linkedleaves", "--maxcounts",
+			"--compressed --linkedleaves --maxcounts", "--mmap", "--writebehind=1", "--aggregate=1", "--bloom",
+			"--bulk", "--bulk --compressed --maxcounts", "--parsethreads=2", "--shards=4",
+			"--shards=3 --parsethreads=2" };
+	// search options compared on the plain tree
+	private final static String[] searchmodes = { "--mmap", "--cachepolicy=clock", "--threads=2",
+			"--hotkeys=64", "--pinlevels=2" };
+
+	private static File dir; // temporary directory of all files
+	private static String gbk; // copy of the gbk file in dir
+	private static String query; // query file
+	private static int seqlen; // sequence length of the trees
+	private static int failed; // modes that differ
+
+    public static void usage() {
+    	System.out.println("java GeneBankRoundTrip [<gbk file> <query file> <sequence length>]");
+    }
+	public static void main(String[] args) throws Exception {
+		if (args.length != 0 && args.length != 3) {
+			usage();
+			return;
+		}
+		String gbkname = args.length == 3 ? args[0] : "test3.gbk";
+		query = new File(args.length == 3 ? args[1] : "query7").getAbsolutePath();
+		seqlen = args.length == 3 ? Integer.parseInt(args[2]) : 7;
+		dir = Files.createTempDirectory("btree-roundtrip").toFile();
+		gbk = new File(dir, new File(gbkname).getName()).getPath();
+		Files.copy(new File(gbkname).toPath(), new File(gbk).toPath());
+		try {
+			String plain = build("");
+			if (plain != null) { // later builds clear the directory, the plain tree is kept aside
+				File kept = new File(dir, "plain." + degree);
+				new File(plain).renameTo(kept);
+				plain = kept.getPath();
+			}
+			byte[] plaindump = dump(plain);
+			String plainsearch = search(plain, "");
+			String plaintop = search(plain, "--top=20");
+			check("plain", plaindump != null && plaindump.length > 0 && plainsearch != null && plaintop != null);
+			for (int m = 0; failed == 0 && m < buildmodes.length; m++) { // nothing to compare with if plain failed
+				String mode = buildmodes[m];
+				String tree = build(mode);
+				check("create " + mode, tree != null && Arrays.equals(plaindump, dump(tree))
+						&& plainsearch.equals(search(tree, "")) && plaintop.equals(search(tree, "--top=20")));
+			}
+			for (int m = 0; plainsearch != null && m < searchmodes.length; m++) {
+				check("search " + searchmodes[m], plainsearch.equals(search(plain, searchmodes[m])));
+			}
+			if (plain != null) {
+				String relaid = new File(dir, "plain.relayout").getPath();
+				GeneBankRelayout.main(new String[] { plain, relaid, "-1" });
+				check("relayout", Arrays.equals(plaindump, dump(relaid)) && plainsearch.equals(search(relaid, "")));
+			}
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		if (failed > 0) {
+			System.out.println(failed + " mode(s) differ from the plain tree");
+			System.exit(1);
+		}
+	}
+	private static void check(String mode, boolean same) {
+		System.out.println((same ? "OK   " : "DIFF ") + mode);
+		if (!same) failed++;
+	}
+	// builds the tree with the options, returns the tree file or the manifest of the
+	// shards, null if the build failed
+	private static String build(String options) {
+		for (File f : dir.listFiles()) { // every mode starts from the gbk file and the plain tree
+			if (!f.getPath().equals(gbk) && !f.getName().startsWith("plain.")) f.delete();
+		}
+		try {
+			GeneBankCreateBTree.main(join(new String[] { "1", "" + degree, gbk, "" + seqlen, "50", "-1" }, options));
+		} catch (Exception e) {
+			System.out.println(e);
+			return null;
+		}
+		String base = gbk + ".btree.data." + seqlen;
+		File tree = new File(options.contains("--shards") ? base + ".shards" : base + "." + degree);
+		return tree.isFile() ? tree.getPath() : null;
+	}
+	// binary dump of the tree, the shards of a manifest one after the other since
+	// they hold the keys in order. Null if there is no tree
+	private static byte[] dump(String tree) throws Exception {
+		if (tree == null) return null;
+		if (!tree.endsWith(".shards")) return dumpFile(tree);
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		String base = tree.substring(0, tree.length() - ".shards".length());
+		for (int i = 0; new File(base + ".shard" + i + "." + degree).isFile(); i++) {
+			byte[] part = dumpFile(base + ".shard" + i + "." + degree);
+			if (part == null) return null;
+			all.write(part);
+		}
+		return all.toByteArray();
+	}
+	private static byte[] dumpFile(String tree) throws Exception {
+		File out = new File(dir, "dump.bin");
+		out.delete();
+		GeneBankDump.main(new String[] { "0", tree, out.getPath(), "0", "-1" });
+		return out.isFile() ? Files.readAllBytes(out.toPath()) : null;
+	}
+	// output of GeneBankSearch for the query file, null if there is no tree
+	private static String search(String tree, String options) throws Exception {
+		if (tree == null) return null;
+		PrintStream stdout = System.out;
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(captured, true, "US-ASCII"));
+		try {
+			GeneBankSearch.main(join(new String[] { "1", tree, query, "20", "-1" }, options));
+		} finally {
+			System.setOut(stdout);
+		}
+		return captured.toString("US-ASCII");
+	}
+	// arguments followed by the options split at spaces
+	private static String[] join(String[] args, String options) {
+		if (options.isEmpty()) return args;
+		String[] more = options.split(" ");
+		String[] all = Arrays.copyOf(args, args.length + more.length);
+		System.arraycopy(more, 0, all, args.length, more.length);
+		return all;
+	}
+}
@@ -1,6 +1,14 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import bterrors.BTreeBadMetadata;
 import bterrors.BTreeFullNode;
@@ -9,12 +17,15 @@ import bterrors.BTreeNonExactNonLeaf;
 import bterrors.BTreeNotFullNode;
 import bterrors.BTreeWrongBlockID;
 import bterrors.BTreeWrongKeyOrder;
+import bterrors.BtreeException;
 import bterrors.DNASequenceNotFound;
 import bterrors.DNAWrongSequenceLength;
 import btree.BTree;
-import btree.BTreeObject;
+import btree.BTreeOptions;
+import btree.CommandOptions;
 import btree.DebugPrint;
-import btree.BTree.NearestSearchResult;
+import btree.Metrics;
+import btree.ShardedTree;
 import ncbi.DNASequence;
 /**
  * 
@@ -22,22 +33,47 @@ import ncbi.DNASequence;
  *
  */
 public class GeneBankSearch {
+	private final static int batchsize = 1 << 16; //queries read and looked up at once
 
     public static void usage() {
     	System.out.println("java GeneBankSearch <0/1(no/with Cache)> <btree file> <query file>"
-    			+ " <cache size> [<debug level>]");
+    			+ " <cache size> [<debug level>]"
+    			+ " (a query <prefix>* lists all sequences starting with prefix)"
+    			+ " [--mmap] [--cachepolicy=<lru/clock>] [--threads=<n>] [--hotkeys=<entries>] [--pinlevels=<n>] [--pinmb=<MB>] [--top=<n>] [--mincount=<count>] [--metrics[=<json file>]]");
     }
-	public static void main(String[] args) throws IOException, BTreeBadMetadata, BTreeWrongBlockID, DNAWrongSequenceLength, InterruptedException, DNASequenceNotFound, BTreeNonExactNonLeaf, BTreeNotFullNode, BTreeWrongKeyOrder, BTreeNoInternalNodeChild, BTreeFullNode {
+	public static void main(String[] args) throws IOException, BTreeBadMetadata, BTreeWrongBlockID, DNAWrongSequenceLength, InterruptedException, DNASequenceNotFound, BTreeNonExactNonLeaf, BTreeNotFullNode, BTreeWrongKeyOrder, BTreeNoInternalNodeChild, BTreeFullNode, BtreeException {
 		boolean usecache;
 		String btreefname;
 		String queryname;
 		int cachesize;
+		BTreeOptions.CachePolicy cachepolicy;
+		int threads;
+		int top;
+		int hotkeys;
+		int pinlevels;
+		int pinmb;
+		long mincount;
 
+		CommandOptions options = new CommandOptions(args);
+		args = options.positional();
 		if (args.length< 4 || args.length > 5) {
 			usage();
 			return;
 		}
 		try {
+			options.checkKnown("mmap", "cachepolicy", "threads", "hotkeys", "pinlevels", "pinmb", "top", "mincount", "metrics");
+			threads = options.getInt("threads", 1);
+			if (threads < 1) throw new IllegalArgumentException();
+			hotkeys = options.getInt("hotkeys", 0);
+			if (hotkeys < 0 || hotkeys == 1) throw new IllegalArgumentException();
+			pinlevels = options.getInt("pinlevels", 0);
+			pinmb = options.getInt("pinmb", 0);
+			if (pinlevels < 0 || pinmb < 0) throw new IllegalArgumentException();
+			top = options.getInt("top", 0);
+			if (top < 0) throw new IllegalArgumentException();
+			mincount = Long.parseLong(options.get("mincount", "0"));
+			if (mincount < 0) throw new IllegalArgumentException();
+			cachepolicy = BTreeOptions.CachePolicy.valueOf(options.get("cachepolicy", "clock").toUpperCase());
 			switch(Integer.parseInt(args[0])) {
 			case 0: usecache=false; break;
 			case 1: usecache=true; break;
@@ -63,32 +99,68 @@ public class GeneBankSearch {
 			return;
 		}
 		
-		BTree dnatree=new BTree(btreefname, true, false, cachesize);
+		BTreeOptions treeoptions = new BTreeOptions().mapped(options.has("mmap")).cachePolicy(cachepolicy).concurrent(threads > 1).hotKeys(hotkeys)
+				.pinLevels(pinlevels).pinBytes((long) pinmb << 20).metrics(options.has("metrics"));
+		//a manifest written by GeneBankCreateBTree --shards opens all its shards, queries go to the shard of their key
+		ShardedTree dnatree = ShardedTree.isManifest(btreefname) ? new ShardedTree(btreefname, cachesize, treeoptions)
+				: new ShardedTree(new BTree(btreefname, true, false, cachesize, treeoptions));
 		//DNAInput dnaparser = new DNAInput(fname, seqlen);
-		int seqlen = -1;
+		boolean ordered = dnatree.isOrderedKeys(); //queries have to be encoded like the tree keys
+		boolean canonical = dnatree.isCanonical(); //and counted with their reverse complement if the tree is
+		int seqlen = dnatree.getSeqLen() > 0 ? dnatree.getSeqLen() : -1; //older trees learn it from the first query
 		long start = System.currentTimeMillis();
+		//most frequent and frequent enough sequences come before the queries
+		if (top > 0) {
+			printTop(dnatree, top, seqlen != -1 ? seqlen : seqLenFromName(btreefname));
+		}
+		if (mincount > 0) {
+			printAtLeast(dnatree, mincount, seqlen != -1 ? seqlen : seqLenFromName(btreefname));
+		}
 		BufferedReader buff = new BufferedReader(new FileReader(queryname));
-		String query = buff.readLine();
-		while (query!=null) {
-			query = query.trim().toLowerCase();
-			if (seqlen==-1)
-				seqlen = query.length();
-			else if (seqlen !=query.length()) 
-				throw new DNAWrongSequenceLength();
-			DNASequence seq = new DNASequence(seqlen);
-			for (char c: query.toCharArray()) {
-				seq.pushCodon(c);
-			}
-			if (!seq.isComplete()) throw new DNAWrongSequenceLength();
-			//System.out.println(tmp + " " + Long.toBinaryString(seq.getDNAKey()));
-			NearestSearchResult lkp = dnatree.lookup(new BTreeObject(seq.getDNAKey()));
-			if (lkp.exact) {
-				System.out.println(query + ": " + lkp.foundkey.getCounter());
-			} else {
-				//System.out.println(tmp + ": <not found>");
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		String[] queries = new String[batchsize];
+		long[] keys = new long[batchsize];
+		long[] counts = new long[batchsize];
+		try {
+			String query = buff.readLine();
+			while (query!=null) {
+				//read and encode a batch of queries, then look them all up
+				int n = 0;
+				DNAWrongSequenceLength badquery = null;
+				String prefix = null; //prefix query that ends the batch
+				try {
+					while (query!=null && n < batchsize) {
+						query = query.trim().toLowerCase();
+						if (query.endsWith("*")) { //answered after the queries before it
+							prefix = query.substring(0, query.length() - 1);
+							query = buff.readLine();
+							break;
+						}
+						if (seqlen==-1)
+							seqlen = query.length();
+						else if (seqlen !=query.length()) 
+							throw new DNAWrongSequenceLength();
+						queries[n] = query;
+						keys[n++] = encode(query, seqlen, ordered, canonical);
+						query = buff.readLine();
+					}
+				} catch (DNAWrongSequenceLength e) {
+					badquery = e; //answer the queries before the bad one first
+					query = null;
+				}
+				lookupBatch(dnatree, keys, counts, n, pool, threads);
+				for (int i = 0; i < n; i++) {
+					if (counts[i] >= 0) {
+						System.out.println(queries[i] + ": " + counts[i]);
+					}
+				}
+				if (badquery != null) throw badquery;
+				if (prefix != null) {
+					scanPrefix(dnatree, prefix, seqlen != -1 ? seqlen : seqLenFromName(btreefname));
+				}
 			}
-			
-			query = buff.readLine();
+		} finally {
+			if (pool != null) pool.shutdown();
 		}
 		if (DebugPrint.debuglevel>=0) {
 			DebugPrint.message("Finished in " + (System.currentTimeMillis()-start) + " ms");
@@ -96,8 +168,150 @@ public class GeneBankSearch {
 		
 		buff.close();
 		dnatree.shutdown();		
+		if (options.has("metrics")) {
+			Metrics.writeJSON(options.get("metrics", ""), dnatree.metricsJSON());
+		}
 		
 
 	}
 
+	//builds the key of a query, query has to be exactly seqlen letters
+	static long encode(String query, int seqlen, boolean ordered) throws DNAWrongSequenceLength {
+		return encode(query, seqlen, ordered, false);
+	}
+
+	//same as above, canonical gives the key of the query or its reverse complement
+	static long encode(String query, int seqlen, boolean ordered, boolean canonical) throws DNAWrongSequenceLength {
+		DNASequence seq = new DNASequence(seqlen, ordered, canonical);
+		for (char c: query.toCharArray()) {
+			seq.pushCodon(c);
+		}
+		if (!seq.isComplete()) throw new DNAWrongSequenceLength();
+		return seq.getDNAKey();
+	}
+
+	//sequence length from a tree file name <gbk file>.btree.data.<length>.<degree>, for
+	//trees that do not record it, -1 if the name does not tell
+	static int seqLenFromName(String btreefname) {
+		String mark = ".btree.data.";
+		int at = btreefname.lastIndexOf(mark);
+		if (at < 0) return -1;
+		try {
+			return Integer.parseInt(btreefname.substring(at + mark.length()).split("\\.")[0]);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	//prints every sequence in the tree that starts with prefix, in alphabetical order
+	static void scanPrefix(ShardedTree dnatree, String prefix, int seqlen) throws IOException, BtreeException, DNAWrongSequenceLength {
+		int p = prefix.length();
+		if (seqlen < 1 || p > seqlen) throw new DNAWrongSequenceLength();
+		long bits = p == 0 ? 0 : encode(prefix, p, dnatree.isOrderedKeys());
+		if (dnatree.isCanonical()) {
+			//a key stands for two sequences, either may start with the prefix
+			boolean ordered = dnatree.isOrderedKeys();
+			int rest = (seqlen - p) << 1;
+			long want = ordered ? bits : DNASequence.reverseLetters(p, bits); //prefix in order preserving encoding
+			TreeMap<Long, Long> found = new TreeMap<Long, Long>(); //sorted by the order preserving key
+			for (int s = 0; s < dnatree.getShardCount(); s++) {
+				BTree.Cursor cursor = dnatree.getShard(s).scan(Long.MIN_VALUE, Long.MAX_VALUE);
+				while (cursor.next()) {
+					long forward = ordered ? cursor.key() : DNASequence.reverseLetters(seqlen, cursor.key());
+					long reverse = DNASequence.reverseComplement(seqlen, forward);
+					if ((forward >>> rest) == want)
+						found.put(forward, cursor.count());
+					if ((reverse >>> rest) == want)
+						found.put(reverse, cursor.count());
+				}
+			}
+			for (Map.Entry<Long, Long> e : found.entrySet()) {
+				System.out.println(DNASequence.getDNAString(seqlen, e.getKey(), true) + ": " + e.getValue());
+			}
+		} else if (dnatree.isOrderedKeys()) {
+			//prefix is in the highest bits, its sequences are one range of keys
+			int rest = (seqlen - p) << 1; //bits of the letters after the prefix
+			long lo = bits << rest, hi = (bits << rest) | ((1L << rest) - 1);
+			for (int s = dnatree.shard(lo); s <= dnatree.shard(hi); s++) { //shards in order hold the keys in order
+				BTree.Cursor cursor = dnatree.getShard(s).scan(lo, hi);
+				while (cursor.next()) {
+					System.out.println(DNASequence.getDNAString(seqlen, cursor.key(), true) + ": " + cursor.count());
+				}
+			}
+		} else {
+			//original encoding keeps the prefix in the lowest bits, all keys have to be checked
+			long mask = (1L << (p << 1)) - 1;
+			TreeMap<Long, Long> found = new TreeMap<Long, Long>(); //sorted by the order preserving key
+			for (int s = 0; s < dnatree.getShardCount(); s++) {
+				BTree.Cursor cursor = dnatree.getShard(s).scan(Long.MIN_VALUE, Long.MAX_VALUE);
+				while (cursor.next()) {
+					if ((cursor.key() & mask) == bits) {
+						found.put(DNASequence.reverseLetters(seqlen, cursor.key()), cursor.count());
+					}
+				}
+			}
+			for (Map.Entry<Long, Long> e : found.entrySet()) {
+				System.out.println(DNASequence.getDNAString(seqlen, e.getKey(), true) + ": " + e.getValue());
+			}
+		}
+	}
+
+	//prints the n sequences with the largest counts, largest first
+	static void printTop(ShardedTree dnatree, int n, int seqlen) throws IOException, BtreeException, DNAWrongSequenceLength {
+		if (seqlen < 1) throw new DNAWrongSequenceLength();
+		long[] keys = new long[n];
+		long[] counts = new long[n];
+		int found = dnatree.topCounts(n, keys, counts);
+		for (int i = 0; i < found; i++) {
+			System.out.println(DNASequence.getDNAString(seqlen, keys[i], dnatree.isOrderedKeys()) + ": " + counts[i]);
+		}
+	}
+
+	//prints every sequence with a count of at least mincount in key order
+	static void printAtLeast(ShardedTree dnatree, long mincount, int seqlen) throws IOException, DNAWrongSequenceLength {
+		if (seqlen < 1) throw new DNAWrongSequenceLength();
+		for (int s = 0; s < dnatree.getShardCount(); s++) {
+			BTree.ThresholdCursor cursor = dnatree.getShard(s).atLeast(mincount);
+			while (cursor.next()) {
+				System.out.println(DNASequence.getDNAString(seqlen, cursor.key(), dnatree.isOrderedKeys()) + ": " + cursor.count());
+			}
+		}
+	}
+
+	//looks up keys from lo to hi and stores their counters, -1 if key is not in the tree
+	//the tree sorts them and shares the descents between neighbouring keys
+	static void lookupRange(ShardedTree dnatree, long[] keys, long[] counts, int lo, int hi) throws IOException, BtreeException {
+		dnatree.lookupCounts(keys, counts, lo, hi);
+	}
+
+	//looks up the first n keys, split into parts for the pool threads if there is a pool
+	static void lookupBatch(final ShardedTree dnatree, final long[] keys, final long[] counts, int n,
+			ExecutorService pool, int threads) throws IOException, BtreeException, InterruptedException {
+		if (pool == null) {
+			lookupRange(dnatree, keys, counts, 0, n);
+			return;
+		}
+		ArrayList<Future<Void>> parts = new ArrayList<Future<Void>>();
+		int step = Math.max(1, (n + threads * 4 - 1) / (threads * 4)); //few parts per thread to even out the load
+		for (int from = 0; from < n; from += step) {
+			final int lo = from, hi = Math.min(n, from + step);
+			parts.add(pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					lookupRange(dnatree, keys, counts, lo, hi);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> part : parts) {
+			try {
+				part.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				if (cause instanceof BtreeException) throw (BtreeException) cause;
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
 }
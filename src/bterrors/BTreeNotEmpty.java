@@ -0,0 +1,10 @@
+package bterrors;
+
+public class BTreeNotEmpty extends BtreeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 3867201954418823290L;
+
+}
@@ -0,0 +1,10 @@
+package bterrors;
+
+public class BTreeReadOnlyFormat extends BTreeBadMetadata {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+}
@@ -1,13 +1,21 @@
 package btree;
 
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.PriorityQueue;
 
 import javax.swing.DebugGraphics;
 
@@ -15,12 +23,15 @@ import bterrors.BTreeBadMetadata;
 import bterrors.BTreeFullNode;
 import bterrors.BTreeNoInternalNodeChild;
 import bterrors.BTreeNonExactNonLeaf;
+import bterrors.BTreeNotEmpty;
 import bterrors.BTreeNotFullNode;
+import bterrors.BTreeReadOnlyFormat;
 import bterrors.BTreeWrongBlockID;
 import bterrors.BTreeWrongFileSize;
 import bterrors.BTreeWrongKeyOrder;
 import bterrors.BTreeWrongObjectSize;
 import bterrors.BTreeWrongRootNode;
+import bterrors.BtreeException;
 import bterrors.DNAWrongSequenceLength;
 import btree.BTree.Cache.NodeKeyPos;
 import ncbi.DNASequence;
@@ -36,18 +47,57 @@ public class BTree {
 	private int degree; // tree degree >= 2
 	private int order; // degree * 2
 	private int maxkeycount; // max keys per node =order-1
+	private int nodekeys; // keys a node can hold, maxkeycount unless leaves are linked
+	private boolean linked; // B+ tree layout, see FLAG_LINKED_LEAVES
+	private boolean compressed; // variable length node encoding, see FLAG_COMPRESSED
+	private boolean maxcounts; // internal nodes keep subtree maximum counters, see FLAG_MAX_COUNTS
+	private boolean parentids; // nodes in the file have a parent id, files without FLAG_NO_PARENTS
 	private int nodesize; // physical node size in bytes
 	private long nodecount; // total nodes in the tree
 	private final static int def_blocksize = 4096; // default block size for tree data
 	private final static int metaDatasize = 4096; // excessive metaDatasize
 	private boolean readonly; // read only flag, if tree is opened for search only
+	private BTreeOptions options; // optional settings the tree was opened with
+	private String treefname; // name of the tree file
+	private BloomFilter bloom; // keys of a read only tree from its sidecar, null if there is none
+	private HotKeyCache hotkeys; // results of frequent lookups in a read only tree, null if not used
+	private Metrics metrics; // counters and latencies, null unless asked for in the options
+	private long[] pinnedids; // ids of the nodes of the top levels kept for good, sorted, null if none
+	private BTreeNode[] pinnednodes; // node of every pinned id
+	private boolean pooling; // evicted nodes are reused, cached trees only one thread uses
+	private ArrayList<BTreeNode> retired = new ArrayList<BTreeNode>(); // evicted since the last KeyCursor seek
+	private BTreeNode[] spare = new BTreeNode[64]; // evicted nodes nobody holds any more
+	private int sparecount; // nodes in spare
+	private long[] splitkeys, splitcounts, splitchildren, splitmax; // scratch of splitNode, writers are alone
+	private KeyCursor updater; // cursor of addCount
+	private long flags; // format flags kept in metadata, zero in files of the original format
+	private int seqlen; // sequence length of the keys kept in metadata, 0 if not known
+	public final static long FLAG_ORDERED_KEYS = 1; // keys use the order preserving DNA encoding
+	// all keys with counters are in leaves chained left to right, internal nodes hold only
+	// separator keys without counters and leaves no children, so both fit more keys
+	public final static long FLAG_LINKED_LEAVES = 2;
+	// keys in a node are stored as varint differences to the key before, counters and
+	// children as varints. Nodes are full when the encoding nears the node size
+	public final static long FLAG_COMPRESSED = 4;
+	public final static long FLAG_CANONICAL = 8; // a key stands for a sequence and its reverse complement
+	// internal nodes keep the largest counter below each child, top and threshold
+	// queries skip subtrees that can't have an answer
+	public final static long FLAG_MAX_COUNTS = 16;
+	// nodes carry no parent id, inserts go back up the path of their descent so a
+	// split does not rewrite the children it moves. Files without it keep a parent
+	// id in every node and are only opened read only
+	public final static long FLAG_NO_PARENTS = 32;
+	private final static long known_flags = FLAG_ORDERED_KEYS | FLAG_LINKED_LEAVES | FLAG_COMPRESSED
+			| FLAG_CANONICAL | FLAG_MAX_COUNTS | FLAG_NO_PARENTS; // flags this version understands
+	private final static int max_entry = 4 * Varint.max_size; // largest growth of an encoded node by one insert
 
 	BTreeNode rootnode; // root node of the tree
 	Cache cache; // cache instance if using Cache, otherwise null
 
-	private RandomAccessFile storage; // object to work with the BTree file with disk
+	private NodeStorage storage; // object to work with the BTree file with disk
 	private static final int node_overhead = 8 * 3; // additional data in node, 3 longs: node id, parent id, numkeys
-													// stored + leaf indicator
+													// stored + leaf indicator. Without parent ids the
+													// layouts keep the 8 bytes free
 
 	private static int getNodeDataSize(int testdegree) { // estimate node size based on testdegree
 		int testorder = 2 * testdegree; // calculate order
@@ -76,10 +126,11 @@ public class BTree {
 	class MedianNode {
 		// Class to carry median key from node split to left and right
 		public BTreeNode left, right;
-		public BTreeObject key;
+		public long key, count; // median key and its counter
 
-		public MedianNode(BTreeObject key, BTreeNode left, BTreeNode right) {
+		public MedianNode(long key, long count, BTreeNode left, BTreeNode right) {
 			this.key = key;
+			this.count = count;
 			this.left = left;
 			this.right = right;
 		}
@@ -91,9 +142,22 @@ public class BTree {
 		public BTreeNode node;
 		public int pos;
 		public boolean exact;
-
-		public void saveNode() throws IOException {
-			node.save();
+		private BTreeNode[] path = new BTreeNode[64]; // nodes from the root down to node
+		private int depth; // depth of node in path, -1 if it came from the key cache
+
+		// saves the node of the result, foundkey is a copy of the key in the node so
+		// its counter is copied back to the node first
+		public void saveNode() throws IOException, BTreeNotFullNode, BTreeWrongKeyOrder, BTreeNoInternalNodeChild,
+				BTreeWrongBlockID, BTreeBadMetadata, BTreeFullNode {
+			if (exact)
+				node.setCount(pos, foundkey.getCounter());
+			long nodes = nodecount; // a split adds nodes
+			if (node.overflows()) // longer counter no longer fits the node
+				splitOverflow(walkedPath(), depth);
+			else
+				node.save();
+			if (exact)
+				raiseAbove(foundkey.getKey(), foundkey.getCounter(), nodecount != nodes);
 		}
 
 		// supplies key navigates to nearest possible key
@@ -101,56 +165,405 @@ public class BTree {
 		// not in the tree
 		public NearestSearchResult(BTreeObject searchkey)
 				throws BTreeWrongBlockID, BTreeBadMetadata, IOException, BTreeNonExactNonLeaf {
+			needkey = searchkey;
+			find(searchkey.getKey());
+			if (exact) {
+				foundkey = new BTreeObject(node.keys[pos], node.counts[pos]); // set found key for exact match if found
+			} else {
+				foundkey = null;
+			}
+		}
+
+		// empty result for a KeyCursor, filled by find
+		NearestSearchResult() {
+		}
+
+		// positions node and pos on the key or on its insert position in a leaf. A key
+		// the Bloom filter rules out gives no node, bloom is only kept read only
+		void find(long key) throws BTreeWrongBlockID, BTreeBadMetadata, IOException, BTreeNonExactNonLeaf {
+			if (bloom != null && !bloom.mightContain(key)) { // surely a miss, no need to walk the tree
+				exact = false;
+				node = null;
+				depth = -1;
+				return;
+			}
 			NodeKeyPos checkcache; // create empty cache
 			if (cache != null) {
-				checkcache = cache.byKey(searchkey.getKey()); // get it from cache
+				checkcache = cache.byKey(key); // get it from cache
 				if (checkcache != null) {
-					foundkey = checkcache.key; // key found in cache
 					node = checkcache.node; // node from cache that contains key
 					pos = checkcache.pos; // key pos in node
 					exact = true; // mark it as exact
+					depth = -1; // path is walked if a split needs it
 					return; // done
 				}
 			}
 
-			needkey = searchkey; // when dont use cache or key is missing
-			BTreeNode prevnode = null; // temp var for prev node
+			descend(key);
+		}
+
+		// walks from the root to the key or its leaf, remembering the path
+		private void descend(long key) throws BTreeWrongBlockID, BTreeBadMetadata, IOException, BTreeNonExactNonLeaf {
+			depth = 0;
 			node = rootnode; // starting from the root, traverse the tree node by node
+			path[0] = node;
 			while (true) {
-				pos = node.searchkey(needkey); // find position of nearest key inside the node
-				if ((pos >= node.keycount || node.keys[pos].compareTo(needkey) != 0)) {
+				pos = node.searchkey(key); // find position of nearest key inside the node
+				if (!node.holds(pos, key)) {
 					// check if we have not found matching key
 					if (!node.isLeaf) { // positioned to descend
-						prevnode = node; // save current node to previous
-						node = getNode(node.children[pos]); // advanced current node to children node at pos where we
+						node = getNode(node.children[node.childpos(pos, key)]); // advanced current node to children node at pos where we
 															// stopped
-						if (node.id_parent != prevnode.id) { // check parent and child relationship
-							System.err.printf("%d %d %d %d%n", prevnode.id, prevnode.id_parent, node.id,
-									node.id_parent);
-							throw new BTreeWrongBlockID();
-						}
+						path[++depth] = node;
 					} else
 						break; // no where to descend in the leaf
 				} else
 					break; // found exact match
 			}
-			exact = (pos < node.keycount && node.keys[pos].compareTo(needkey) == 0); // check if found exact, key equal
-																						// to key we searched for
+			exact = node.holds(pos, key); // check if found exact, key equal to key we
+																		// searched for
 			if (!exact && !node.isLeaf)
 				throw new BTreeNonExactNonLeaf(); // check, non exact match only possible in leaf
-			if (exact) {
-				foundkey = node.keys[pos]; // set found key for exact match if found
-			} else {
-				foundkey = null;
+		}
+
+		// raises the maxima above the key whose counter is now count, along the path
+		// of the search. A split since the search may have moved the key to other
+		// nodes, the path is walked again then
+		void raiseAbove(long key, long count, boolean split) throws BTreeNotFullNode, BTreeWrongKeyOrder,
+				BTreeNoInternalNodeChild, BTreeWrongBlockID, BTreeBadMetadata, IOException, BTreeFullNode {
+			if (!maxcounts)
+				return;
+			if (split || depth < 0) {
+				try {
+					descend(key); // key is in the tree now
+				} catch (BTreeNonExactNonLeaf e) {
+					throw new BTreeBadMetadata();
+				}
 			}
+			raiseMax(path, depth, key, count);
+		}
 
+		// path from the root to node, a node from the key cache walks it now
+		BTreeNode[] walkedPath() throws BTreeWrongBlockID, BTreeBadMetadata, IOException {
+			if (depth < 0) {
+				try {
+					descend(node.keys[pos]); // key is in the tree, the walk ends at the same node
+				} catch (BTreeNonExactNonLeaf e) {
+					throw new BTreeBadMetadata();
+				}
+			}
+			return path;
 		}
 	}
 
 	// interfaces, takes key and returns nearest search result instance
+	// safe to call from many threads if the tree is read only and concurrent. On a
+	// read only tree with a Bloom filter a key the filter rules out is a miss
+	// without node, the tree is not walked
 	public NearestSearchResult lookup(BTreeObject key)
 			throws BTreeWrongBlockID, BTreeBadMetadata, BTreeNonExactNonLeaf, IOException {
-		return new NearestSearchResult(key);
+		if (metrics == null)
+			return new NearestSearchResult(key);
+		long start = System.nanoTime();
+		NearestSearchResult res = new NearestSearchResult(key);
+		metrics.lookups.record(System.nanoTime() - start);
+		return res;
+	}
+
+	// looks up keys from lo to hi in one pass and stores their counters in counts at
+	// the same positions, -1 if the key is not in the tree. Keys are visited in
+	// sorted order keeping the path from the root, every key climbs only as far as
+	// the lowest node on the path whose key range holds it and descends from there.
+	// safe to call from many threads if the tree is read only and concurrent
+	public void lookupCounts(long[] keys, long[] counts, int lo, int hi)
+			throws BTreeWrongBlockID, BTreeBadMetadata, IOException {
+		int n = hi - lo;
+		if (n <= 0)
+			return;
+		long[] sorted = new long[n]; // keys in ascending order
+		int[] index = new int[n]; // position in keys of every sorted key
+		int m = 0;
+		for (int i = lo; i < hi; i++) {
+			if (hotkeys != null) { // frequent keys are answered without the tree
+				long c = hotkeys.get(keys[i]);
+				if (c != HotKeyCache.absent) {
+					counts[i] = c;
+					continue;
+				}
+			}
+			if (bloom != null && !bloom.mightContain(keys[i])) {
+				counts[i] = -1; // surely a miss, no need to walk the tree
+				continue;
+			}
+			sorted[m] = keys[i];
+			index[m++] = i;
+		}
+		n = m;
+		if (n == 0)
+			return;
+		KeySort.sort(sorted, index, 0, n - 1);
+
+		BTreeNode[] path = new BTreeNode[64]; // nodes from the root down to the current one
+		long[] upper = new long[64]; // keys below this bound belong to the node at that depth
+		boolean[] bounded = new boolean[64]; // false if the node covers all keys to the right
+		int depth = 0;
+		path[0] = rootnode;
+		long count = -1; // counter of the previous key
+		for (int i = 0; i < n; i++) {
+			long key = sorted[i];
+			if (i == 0 || key != sorted[i - 1]) { // repeated key keeps previous result
+				long start = metrics != null ? System.nanoTime() : 0;
+				while (depth > 0 && bounded[depth] && key >= upper[depth])
+					depth--; // climb until the node range holds the key
+				BTreeNode node = path[depth];
+				while (true) {
+					int pos = node.searchkey(key);
+					if (node.holds(pos, key)) { // found exact match
+						count = node.counts[pos];
+						break;
+					}
+					if (node.isLeaf) { // no where to descend in the leaf
+						count = -1;
+						break;
+					}
+					pos = node.childpos(pos, key);
+					BTreeNode child = getNode(node.children[pos]);
+					depth++;
+					path[depth] = child;
+					bounded[depth] = pos < node.keycount || bounded[depth - 1];
+					upper[depth] = pos < node.keycount ? node.keys[pos] : upper[depth - 1];
+					node = child;
+				}
+				if (metrics != null)
+					metrics.lookups.record(System.nanoTime() - start);
+				if (hotkeys != null)
+					hotkeys.put(key, count);
+			}
+			counts[index[i]] = count;
+		}
+	}
+
+	// cursor over the keys from lo to hi, both included, in ascending order. With
+	// the order preserving encoding all sequences sharing a prefix are one range.
+	// safe to call from many threads if the tree is read only and concurrent
+	public Cursor scan(long lo, long hi) throws BTreeWrongBlockID, BTreeBadMetadata, IOException {
+		return new Cursor(lo, hi);
+	}
+
+	/*
+	 * walks the keys in order keeping the path from the root, every node on the
+	 * path remembers the position of its next key. Below an internal node the path
+	 * holds the child left of that key. With linked leaves the path is just the
+	 * current leaf and the walk follows the leaf chain
+	 */
+	public class Cursor implements KeyCountSource {
+		private BTreeNode[] path = new BTreeNode[64]; // nodes from the root down
+		private int[] next = new int[64]; // position of the next key in every node on the path
+		private int depth; // depth of the lowest node on the path, -1 when done
+		private long hi; // last key of the range
+		private long key, count; // current pair
+
+		// descends to the first key not below lo
+		Cursor(long lo, long hi) throws BTreeWrongBlockID, BTreeBadMetadata, IOException {
+			this.hi = hi;
+			BTreeNode node = rootnode;
+			depth = 0;
+			while (true) {
+				int pos = node.searchkey(lo);
+				path[depth] = node;
+				next[depth] = pos;
+				if (node.isLeaf || node.holds(pos, lo))
+					break; // the key at pos comes first
+				node = child(node, node.childpos(pos, lo));
+				if (!linked) // linked leaves never climb back up
+					depth++;
+			}
+		}
+
+		// loads the child at pos
+		private BTreeNode child(BTreeNode node, int pos) throws BTreeWrongBlockID, BTreeBadMetadata, IOException {
+			return getNode(node.children[pos]);
+		}
+
+		// moves to the next key of the range, false when the range is done
+		public boolean next() throws IOException {
+			while (depth >= 0) {
+				BTreeNode node = path[depth];
+				int pos = next[depth];
+				if (pos >= node.keycount) { // node is done, continue with its parent
+					if (linked && node.next != -1) { // or with the next leaf
+						try {
+							path[depth] = getNode(node.next);
+						} catch (BtreeException e) {
+							throw new IOException(e);
+						}
+						next[depth] = 0;
+					} else
+						depth--;
+					continue;
+				}
+				if (node.keys[pos] > hi) { // past the range
+					depth = -1;
+					return false;
+				}
+				key = node.keys[pos];
+				count = node.counts[pos];
+				next[depth] = pos + 1;
+				if (!node.isLeaf) { // keys right of this one start at the very left of the next child
+					try {
+						BTreeNode down = child(node, pos + 1);
+						while (true) {
+							path[++depth] = down;
+							next[depth] = 0;
+							if (down.isLeaf)
+								break;
+							down = child(down, 0);
+						}
+					} catch (BtreeException e) {
+						throw new IOException(e);
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+
+		public long key() {
+			return key;
+		}
+
+		public long count() {
+			return count;
+		}
+	}
+
+	// a key with its counter or a subtree with its largest counter, for topCounts
+	static class Ranked {
+		long count, key, node; // node is -1 for a key
+
+		Ranked(long count, long key, long node) {
+			this.count = count;
+			this.key = key;
+			this.node = node;
+		}
+	}
+
+	// largest counter first, a subtree before keys with the same counter as it may
+	// hold a smaller key with that counter, then ascending keys
+	private final static Comparator<Ranked> rankorder = new Comparator<Ranked>() {
+		public int compare(Ranked a, Ranked b) {
+			if (a.count != b.count)
+				return a.count > b.count ? -1 : 1;
+			if ((a.node == -1) != (b.node == -1))
+				return a.node == -1 ? 1 : -1;
+			return Long.compare(a.key, b.key);
+		}
+	};
+
+	// puts the n keys with the largest counters into keys and counts, largest first
+	// and ascending keys among equal counters, returns how many there were. With
+	// subtree maxima only nodes that can hold one of them are read, otherwise every key
+	public int topCounts(int n, long[] keys, long[] counts) throws BTreeWrongBlockID, BTreeBadMetadata, IOException {
+		int found = 0;
+		if (!maxcounts) { // keep the best n of a full scan, worst of them on top of the heap
+			PriorityQueue<Ranked> best = new PriorityQueue<Ranked>(n + 1, new Comparator<Ranked>() {
+				public int compare(Ranked a, Ranked b) {
+					return rankorder.compare(b, a);
+				}
+			});
+			Cursor cursor = scan(Long.MIN_VALUE, Long.MAX_VALUE);
+			while (cursor.next()) {
+				best.add(new Ranked(cursor.count(), cursor.key(), -1));
+				if (best.size() > n)
+					best.poll();
+			}
+			found = best.size();
+			for (int i = found - 1; i >= 0; i--) {
+				Ranked r = best.poll();
+				keys[i] = r.key;
+				counts[i] = r.count;
+			}
+			return found;
+		}
+		// best first: a key comes out of the queue only when no subtree left can beat it
+		PriorityQueue<Ranked> queue = new PriorityQueue<Ranked>(64, rankorder);
+		queue.add(new Ranked(Long.MAX_VALUE, 0, rootnode.id));
+		while (found < n && !queue.isEmpty()) {
+			Ranked r = queue.poll();
+			if (r.node == -1) {
+				keys[found] = r.key;
+				counts[found++] = r.count;
+				continue;
+			}
+			BTreeNode node = getNode(r.node);
+			if (node.isLeaf || !linked)
+				for (int i = 0; i < node.keycount; i++)
+					queue.add(new Ranked(node.counts[i], node.keys[i], -1));
+			if (!node.isLeaf)
+				for (int i = 0; i <= node.keycount; i++)
+					queue.add(new Ranked(node.submax[i], 0, node.children[i]));
+		}
+		return found;
+	}
+
+	// cursor over the keys with a counter of at least mincount in ascending order,
+	// subtrees whose largest counter is lower are skipped if the tree keeps maxima
+	public ThresholdCursor atLeast(long mincount) {
+		return new ThresholdCursor(mincount);
+	}
+
+	/*
+	 * walks the tree in order like Cursor but from the root down, every node on the
+	 * path remembers its next step: even steps descend to child step / 2, odd steps
+	 * hand out key step / 2
+	 */
+	public class ThresholdCursor implements KeyCountSource {
+		private BTreeNode[] path = new BTreeNode[64]; // nodes from the root down
+		private int[] step = new int[64]; // next step in every node on the path
+		private int depth; // depth of the lowest node on the path, -1 when done
+		private long mincount; // smallest counter handed out
+		private long key, count; // current pair
+
+		ThresholdCursor(long mincount) {
+			this.mincount = mincount;
+			path[0] = rootnode;
+		}
+
+		// moves to the next key with a high enough counter, false when there is none
+		public boolean next() throws IOException {
+			while (depth >= 0) {
+				BTreeNode node = path[depth];
+				int s = step[depth]++;
+				if (s > 2 * node.keycount) { // node is done, continue with its parent
+					depth--;
+					continue;
+				}
+				int i = s >> 1;
+				if ((s & 1) == 0) {
+					if (!node.isLeaf && (!maxcounts || node.submax[i] >= mincount)) {
+						try {
+							path[++depth] = getNode(node.children[i]);
+						} catch (BtreeException e) {
+							throw new IOException(e);
+						}
+						step[depth] = 0;
+					}
+				} else if ((node.isLeaf || !linked) && node.counts[i] >= mincount) {
+					key = node.keys[i];
+					count = node.counts[i];
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public long key() {
+			return key;
+		}
+
+		public long count() {
+			return count;
+		}
 	}
 
 	// looks for nearest key and inserts the key there
@@ -165,108 +578,497 @@ public class BTree {
 		if (res.exact) { // check if search result is exact, dont insert in that case
 			return;
 		}
-		BTreeNode insnode = res.node; // provides insertion point
-		MedianNode med = new MedianNode(res.needkey, null, null); // dummy median node to insert to leaf
-		int pos = res.pos; // get insertion position in the current node
-		while (insnode.keycount >= maxkeycount) { // while node is full split it exact median and try to insert it to
+		if (metrics == null) {
+			insertFound(res);
+			return;
+		}
+		long start = System.nanoTime();
+		insertFound(res);
+		metrics.inserts.record(System.nanoTime() - start);
+	}
+
+	// inserts the needkey of a search result that is not exact
+	private void insertFound(NearestSearchResult res) throws BTreeNotFullNode, BTreeWrongKeyOrder,
+			BTreeNoInternalNodeChild, BTreeWrongBlockID, BTreeBadMetadata, IOException, BTreeFullNode {
+		MedianNode med = new MedianNode(res.needkey.getKey(), res.needkey.getCounter(), null, null); // dummy median
+																										// node to insert
+																										// to leaf
+		long nodes = nodecount; // a split adds nodes
+		insertAt(res.path, res.depth, res.pos, med);
+		res.raiseAbove(res.needkey.getKey(), res.needkey.getCounter(), nodecount != nodes);
+	}
+
+	/*
+	 * reusable position for single keys: seek finds a key, add changes its counter
+	 * or inserts it and has to follow its seek without other calls on the tree in
+	 * between. Nothing is allocated per key once the cache is warm, nodes evicted
+	 * from the cache are reused by later seeks unless the tree is concurrent. So
+	 * lookup results and scans of the same tree are not valid any more after a
+	 * seek, and a cursor is for one thread
+	 */
+	public class KeyCursor {
+		private NearestSearchResult res = new NearestSearchResult(); // position of the last seek
+		private MedianNode med = new MedianNode(0, 0, null, null); // key going into a leaf
+		private long key; // key of the last seek
+		private boolean valid; // add not called since the last seek
+
+		KeyCursor() {
+		}
+
+		// positions the cursor on the key, true if it is in the tree
+		public boolean seek(long key) throws BTreeWrongBlockID, BTreeBadMetadata, IOException, BTreeNonExactNonLeaf {
+			recycle();
+			long start = metrics != null ? System.nanoTime() : 0;
+			res.find(key); // checks the Bloom filter first
+			if (metrics != null)
+				metrics.lookups.record(System.nanoTime() - start);
+			this.key = key;
+			valid = true;
+			return res.exact;
+		}
+
+		// counter of the key of the last seek, -1 if it is not in the tree
+		public long count() {
+			if (!valid)
+				throw new IllegalStateException("seek first");
+			return res.exact ? res.node.counts[res.pos] : -1;
+		}
+
+		// adds count to the counter of the key of the last seek, inserts the key with
+		// count if it was not there. Returns the new counter, the cursor has to seek
+		// again before the next call
+		public long add(long count) throws BTreeNotFullNode, BTreeWrongKeyOrder, BTreeNoInternalNodeChild,
+				BTreeWrongBlockID, BTreeBadMetadata, IOException, BTreeFullNode {
+			if (!valid)
+				throw new IllegalStateException("seek first");
+			if (readonly)
+				throw new IOException("tree is read only");
+			valid = false;
+			long start = metrics != null ? System.nanoTime() : 0;
+			long total = count;
+			long nodes = nodecount; // a split adds nodes
+			if (res.exact) {
+				total = res.node.counts[res.pos] + count;
+				res.node.setCount(res.pos, total);
+				if (res.node.overflows()) // longer counter no longer fits the node
+					splitOverflow(res.walkedPath(), res.depth);
+				else
+					res.node.save();
+			} else {
+				med.key = key;
+				med.count = count;
+				med.left = med.right = null;
+				insertAt(res.path, res.depth, res.pos, med);
+			}
+			res.raiseAbove(key, total, nodecount != nodes);
+			res.node = null;
+			if (metrics != null)
+				metrics.inserts.record(System.nanoTime() - start);
+			return total;
+		}
+	}
+
+	// new cursor for single keys, see KeyCursor
+	public KeyCursor keyCursor() {
+		return new KeyCursor();
+	}
+
+	// inserts the key of med with its right child at pos into the node at depth of
+	// path, the nodes from the root down to it. Full nodes are split on the way up
+	private void insertAt(BTreeNode[] path, int depth, int pos, MedianNode med) throws BTreeNotFullNode,
+			BTreeWrongKeyOrder, BTreeNoInternalNodeChild, BTreeWrongBlockID, BTreeBadMetadata, IOException,
+			BTreeFullNode {
+		BTreeNode insnode = path[depth];
+		while (insnode.isFull()) { // while node is full split it exact median and try to insert it to
 													// the parent
 			// current node is full
-			med = insnode.splitNode(med.key, pos, med.right); // split node and obtain a new median with right and left
+			med = insnode.splitNode(med.key, med.count, pos, med.right); // split node and obtain a new median with right and left
 																// child
 
-			if (insnode.id_parent == -1) { // if we split root node then break nothing else to split nothing above root
+			if (depth == 0) { // if we split root node then break nothing else to split nothing above root
 											// node
 				insnode = null;
 				break;
 			}
-			BTreeNode parent = getNode(insnode.id_parent); // otherwise move to the parent of the node we split
-
-			if (insnode.id_parent != parent.id)
-				throw new BTreeWrongBlockID(); // check that id parent is actually parent id of current node
-			insnode = parent; // set insertion node to parent
+			insnode = path[--depth]; // otherwise move to the parent of the node we split
 			pos = insnode.searchkey(med.key); // figure out insertion position for the new median
 		}
 		if (insnode != null) { // found the internal node with space
-			insnode.insertkey(med.key, pos, med.right); // node function to insert the key in the node which has space
-			if (insnode.id_parent == -1)
-				rootnode = insnode; // in case were inserting in root node update root node reference
-			// insnode.save();
+			insnode.insertkey(med.key, med.count, pos, med.right); // node function to insert the key in the node which has space
 		} else {
-			rootnode = new BTreeNode(nodecount++, -1, false); // if we end up splitting root itself, create new root
+			rootnode = newNode(nodecount++, false); // if we end up splitting root itself, create new root
 																// containing the last median with left and right
 																// children
 			rootnode.keycount = 1; // only one key, the last median
 			rootnode.keys[0] = med.key; // set what the key is
+			rootnode.counts[0] = med.count;
 			rootnode.children[0] = med.left.id; // set children left and right
 			rootnode.children[1] = med.right.id;
-			med.left.id_parent = rootnode.id; // came without knowing who parent is set new root as parent
-			med.right.id_parent = rootnode.id;
-			rootnode.save(); // save all three
-			med.left.save();
-			med.right.save();
+			if (maxcounts) {
+				rootnode.submax[0] = med.left.subtreeMax();
+				rootnode.submax[1] = med.right.subtreeMax();
+			}
+			rootnode.save(); // children were saved by the split
+			if (metrics != null)
+				metrics.height++;
+		}
+
+	}
+
+	// adds count to the counter of the key, the key is inserted with that count if
+	// it is not in the tree yet
+	public void addCount(long key, long count) throws BTreeNotFullNode, BTreeWrongKeyOrder, BTreeNoInternalNodeChild,
+			BTreeWrongBlockID, BTreeBadMetadata, BTreeFullNode, BTreeNonExactNonLeaf, IOException {
+		if (updater == null)
+			updater = new KeyCursor();
+		updater.seek(key);
+		updater.add(count);
+	}
+
+	// the counter of key in the node at depth of path, the nodes from the root down
+	// to it, got count. Raises the maxima above it on the path, counters only grow
+	// so none is ever lowered. A node split by a longer maximum leaves the path below
+	// it as it is, the halves take their maxima from the nodes below
+	private void raiseMax(BTreeNode[] path, int depth, long key, long count) throws BTreeNotFullNode,
+			BTreeWrongKeyOrder, BTreeNoInternalNodeChild, BTreeWrongBlockID, BTreeBadMetadata, IOException,
+			BTreeFullNode {
+		for (int d = 0; d < depth; d++) {
+			BTreeNode node = path[d];
+			int i = node.childpos(node.searchkey(key), key);
+			if (node.submax[i] < count) {
+				node.setSubmax(i, count);
+				if (node.overflows()) // longer maximum no longer fits
+					splitOverflow(path, d);
+				else
+					node.save();
+			}
+		}
+	}
+
+	// a compressed node can outgrow its block when a counter gets longer. Its last
+	// key is taken out and inserted again, which splits the node like a full one.
+	// The node is at depth of path
+	private void splitOverflow(BTreeNode[] path, int depth) throws BTreeNotFullNode, BTreeWrongKeyOrder,
+			BTreeNoInternalNodeChild, BTreeWrongBlockID, BTreeBadMetadata, IOException, BTreeFullNode {
+		BTreeNode node = path[depth];
+		node.changed();
+		int last = --node.keycount;
+		BTreeNode right = null; // last child goes back in as right child of the key
+		if (!node.isLeaf) {
+			right = getNode(node.children[last + 1]);
+			node.children[last + 1] = -1;
+		}
+		insertAt(path, depth, last, new MedianNode(node.keys[last], node.counts[last], null, right));
+	}
+
+	// adds every pair of the source with addCount, sources in key order walk the
+	// tree left to right which keeps the cache warm
+	public void addCounts(KeyCountSource source) throws BTreeNotFullNode, BTreeWrongKeyOrder,
+			BTreeNoInternalNodeChild, BTreeWrongBlockID, BTreeBadMetadata, BTreeFullNode, BTreeNonExactNonLeaf,
+			IOException {
+		while (source.next())
+			addCount(source.key(), source.count());
+	}
+
+	// loads an empty tree from pairs in strictly ascending key order, nodes are
+	// packed left to right up to fillfactor and every node is written once
+	public void bulkLoad(KeyCountSource source, double fillfactor)
+			throws IOException, BTreeNotEmpty, BTreeWrongKeyOrder {
+		if (rootnode.keycount > 0 || nodecount != 1) // only fresh tree can be bulk loaded
+			throw new BTreeNotEmpty();
+		new BulkLoader(fillfactor).load(source);
+	}
+
+	/*
+	 * builds the tree bottom up, keeps one open node per level with the leaf level
+	 * first. When the node is packed the next key goes up to the parent level as
+	 * separator and a new node is started to the right of it
+	 */
+	class BulkLoader {
+		private int target; // keys per packed node
+		private int budget; // bytes per packed node of a compressed tree
+		private int[] used = new int[64]; // encoded bytes of the open node on each level
+		private ArrayList<BTreeNode> open; // node being filled on each level, leaves at zero
+
+		BulkLoader(double fillfactor) {
+			if (fillfactor <= 0 || fillfactor > 1)
+				throw new IllegalArgumentException();
+			// packed nodes must still hold at least degree - 1 keys
+			target = Math.max(Math.max(1, degree - 1), (int) Math.round(fillfactor * nodekeys));
+			target = Math.min(target, nodekeys);
+			budget = (int) (fillfactor * nodesize);
+			open = new ArrayList<BTreeNode>();
+		}
+
+		// true if the key still goes into the open node on the level, compressed
+		// nodes are packed by encoded size and take at least one key
+		private boolean room(int level, long key, long count) {
+			BTreeNode node = open.get(level);
+			if (!compressed)
+				return node.keycount < target;
+			return node.keycount == 0 || (node.keycount < nodekeys && used[level] + cost(node, key, count) <= budget);
+		}
+
+		// bytes the key adds to the encoding of the node, children are not known yet
+		// and are counted at full length
+		private int cost(BTreeNode node, long key, long count) {
+			int size = Varint.size(node.keycount == 0 ? key : key - node.keys[node.keycount - 1]);
+			if (node.isLeaf || !linked)
+				size += Varint.size(count);
+			if (!node.isLeaf && maxcounts)
+				size += Varint.max_size;
+			return node.isLeaf ? size : size + Varint.max_size;
 		}
 
+		// puts the key at the end of the open node on the level
+		private void append(int level, long key, long count) {
+			BTreeNode node = open.get(level);
+			used[level] += cost(node, key, count);
+			node.changed(); // the loader counts the bytes itself
+			node.keys[node.keycount] = key;
+			node.counts[node.keycount++] = count;
+		}
+
+		// makes node the open node of the level
+		private void start(int level, BTreeNode node) {
+			if (level == open.size())
+				open.add(node);
+			else
+				open.set(level, node);
+			used[level] = node.encodedSize();
+			if (maxcounts && !node.isLeaf) // maximum of the first child is not known yet either
+				used[level] += Varint.max_size;
+		}
+
+		// appends key to the open node on the level or moves it up if node is packed
+		private void addKey(int level, long key, long count) throws IOException {
+			if (room(level, key, count))
+				append(level, key, count);
+			else
+				promote(level, key, count);
+		}
+
+		// finishes the open node on the level and pushes key up as separator, with
+		// linked leaves a copy of the key goes up and the key starts the next leaf
+		private void promote(int level, long key, long count) throws IOException {
+			BTreeNode node = open.get(level);
+			if (level + 1 == open.size()) { // node is the top so far, tree grows by one level
+				BTreeNode top = new BTreeNode(nodecount++, false);
+				top.children[0] = node.id;
+				start(level + 1, top);
+			}
+			BTreeNode above = open.get(level + 1); // node is the last child of the open node above
+			if (maxcounts)
+				above.submax[above.keycount] = node.subtreeMax();
+			addKey(level + 1, key, count);
+			BTreeNode parent = open.get(level + 1); // may be a new node if parent got packed
+			BTreeNode fresh = new BTreeNode(nodecount++, level == 0);
+			parent.children[parent.keycount] = fresh.id; // right child of the separator
+			start(level, fresh);
+			if (linked && level == 0) {
+				node.next = fresh.id;
+				append(level, key, count);
+			}
+			node.saveToStorage(); // node is complete, nothing will change it any more
+		}
+
+		void load(KeyCountSource source) throws IOException, BTreeWrongKeyOrder {
+			start(0, rootnode); // empty root leaf is the first leaf
+			boolean held = false; // last pair is held back so no leaf is left empty
+			long prevkey = 0, prevcount = 0;
+			while (source.next()) {
+				if (held && source.key() <= prevkey)
+					throw new BTreeWrongKeyOrder();
+				if (held)
+					addKey(0, prevkey, prevcount);
+				prevkey = source.key();
+				prevcount = source.count();
+				held = true;
+			}
+			if (held && linked) // keys never move out of leaves, no leaf ends up empty
+				addKey(0, prevkey, prevcount);
+			else if (held) {
+				BTreeNode leaf = open.get(0);
+				if (compressed ? !room(0, prevkey, prevcount) : leaf.keycount == nodekeys) { // no room, move last key of the leaf up instead
+					leaf.keycount--;
+					promote(0, leaf.keys[leaf.keycount], leaf.counts[leaf.keycount]);
+				}
+				append(0, prevkey, prevcount);
+			}
+			for (int level = 0; level < open.size(); level++) { // write out the right edge of the tree
+				BTreeNode node = open.get(level);
+				node.changed(); // filled without keeping its size, the root stays in use
+				if (maxcounts && level + 1 < open.size()) {
+					BTreeNode above = open.get(level + 1);
+					above.submax[above.keycount] = node.subtreeMax();
+				}
+				node.saveToStorage();
+			}
+			rootnode = open.get(open.size() - 1);
+			if (metrics != null)
+				metrics.height = open.size();
+		}
 	}
 
 	/*
 	 * inner class that represents a node, node holds up to "order" of children node
-	 * ids and order - 1 BTreeObject as keys
+	 * ids and order - 1 keys with their counters. Keys and counters are kept in
+	 * parallel arrays, BTreeObject is only created when a key leaves the tree
 	 */
 	class BTreeNode {
 		private long id; // node id
-		private long id_parent; // parent id
 		private long[] children; // array of children ids
-		private BTreeObject[] keys; // array of keys
+		private long[] keys; // array of keys
+		private long[] counts; // array of counters matching keys
+		private long[] submax; // largest counter below every child, only with FLAG_MAX_COUNTS
 		private int keycount; // actual number of keys stored in node
 		private boolean isLeaf; // leaf indicator
+		private boolean dirty; // changed in cache since it was last written to storage
+		private long next = -1; // next leaf to the right if leaves are linked, -1 for the last one
+		private boolean cached; // held by the cache, set and cleared by the cache
+		private boolean pooled; // waiting in spare to be reused
+		private int encsize = -1; // bytes of the compressed encoding, -1 until known again after a change
 
 		/*
-		 * constructor creates a node from id, parent, and leaf indicator. Allocates
-		 * storage for keys and children ids
+		 * constructor creates a node from id and leaf indicator. Allocates storage for
+		 * keys and children ids
 		 */
-		public BTreeNode(long id, long id_parent, boolean isLeaf) {
+		public BTreeNode(long id, boolean isLeaf) {
 			this.id = id;
-			this.id_parent = id_parent;
 			this.isLeaf = isLeaf;
-			children = new long[order]; // allocates children as order of longs
+			children = new long[nodekeys + 1]; // allocates children as order of longs
 			for (int i = 0; i < children.length; i++)
 				children[i] = -1; // mark as uninitialized
-			keys = new BTreeObject[maxkeycount]; // initialize keys
+			keys = new long[nodekeys]; // initialize keys
+			counts = new long[nodekeys]; // and their counters
+			if (maxcounts)
+				submax = new long[nodekeys + 1];
 			keycount = 0; // set key count to zero, node is empty
 
 		}
 
+		// makes a spare node as good as a new one with the given id
+		void reuse(long id, boolean isLeaf) {
+			this.id = id;
+			this.isLeaf = isLeaf;
+			Arrays.fill(children, -1);
+			if (submax != null)
+				Arrays.fill(submax, 0);
+			keycount = 0;
+			dirty = false;
+			next = -1;
+			cached = false;
+			pooled = false;
+			encsize = -1;
+		}
+
 		// function searches for nearest possible key inside the node
 		// returns the index for the first key larger or equal to sought key
 		// binary search
-		public int searchkey(BTreeObject key) {
+		public int searchkey(long key) {
 			int lo = 0, hi = keycount - 1;
 			while (lo <= hi) {
-				int mid = (lo + hi) / 2;
-				int cmp = key.compareTo(keys[mid]);
-				switch (cmp) {
-				case 0:
-					return mid;
-				case -1:
+				int mid = (lo + hi) >>> 1;
+				long midkey = keys[mid];
+				if (key < midkey)
 					hi = mid - 1;
-					break;
-				case 1:
+				else if (key > midkey)
 					lo = mid + 1;
-					break;
-				default:
-					throw new IllegalArgumentException();
-				}
+				else
+					return mid;
 			}
 			return lo;
 		}
 
+		// true if no key can be inserted without splitting the node
+		boolean isFull() {
+			return keycount >= nodekeys || (compressed && encodedSize() + max_entry > nodesize);
+		}
+
+		// true if the node does not fit its block any more
+		boolean overflows() {
+			return compressed && encodedSize() > nodesize;
+		}
+
+		// bytes of the compressed encoding of the node, counted once and then kept
+		// up to date by the changes that know their effect
+		int encodedSize() {
+			if (encsize < 0)
+				encsize = countEncodedSize();
+			return encsize;
+		}
+
+		// the encoded size has to be counted again
+		void changed() {
+			encsize = -1;
+		}
+
+		// sets the counter at pos
+		void setCount(int pos, long count) {
+			if (encsize >= 0 && (isLeaf || !linked)) // only counters that are encoded change the size
+				encsize += Varint.size(count) - Varint.size(counts[pos]);
+			counts[pos] = count;
+		}
+
+		// sets the maximum below child i of an internal node
+		void setSubmax(int i, long max) {
+			if (encsize >= 0)
+				encsize += Varint.size(max) - Varint.size(submax[i]);
+			submax[i] = max;
+		}
+
+		// bytes of the compressed encoding, walks every entry
+		private int countEncodedSize() {
+			int size = node_overhead;
+			if (linked && isLeaf)
+				size += 8; // next leaf
+			if (!isLeaf)
+				for (int i = 0; i <= keycount; i++)
+					size += Varint.size(children[i]);
+			for (int i = 0; i < keycount; i++) {
+				size += Varint.size(i == 0 ? keys[0] : keys[i] - keys[i - 1]);
+				if (isLeaf || !linked)
+					size += Varint.size(counts[i]);
+			}
+			if (maxcounts && !isLeaf)
+				for (int i = 0; i <= keycount; i++)
+					size += Varint.size(submax[i]);
+			return size;
+		}
+
+		// largest counter in the subtree of the node
+		long subtreeMax() {
+			long max = 0;
+			if (isLeaf || !linked)
+				for (int i = 0; i < keycount; i++)
+					max = Math.max(max, counts[i]);
+			if (!isLeaf)
+				for (int i = 0; i <= keycount; i++)
+					max = Math.max(max, submax[i]);
+			return max;
+		}
+
+		// true if the key at pos from searchkey is the key with its counter, with linked
+		// leaves keys in internal nodes are only separators
+		boolean holds(int pos, long key) {
+			return pos < keycount && keys[pos] == key && (isLeaf || !linked);
+		}
+
+		// child to descend to from pos of searchkey, with linked leaves a key equal to
+		// the separator is in the child right of it
+		int childpos(int pos, long key) {
+			if (linked && pos < keycount && keys[pos] == key)
+				return pos + 1;
+			return pos;
+		}
+
 		// helper function to validate the key for insertion at the given position
 		// also makes sure the right child is valid for non leaf node
-		private void checkKeyOrder(BTreeObject key, int pos, BTreeNode rightchild)
+		private void checkKeyOrder(long key, int pos, BTreeNode rightchild)
 				throws BTreeWrongKeyOrder, BTreeNoInternalNodeChild {
-			if (pos > 0 && key.compareTo(keys[pos - 1]) != 1)
+			if (pos > 0 && key <= keys[pos - 1])
 				throw new BTreeWrongKeyOrder();
-			if (pos < keycount && key.compareTo(keys[pos]) != -1)
+			if (pos < keycount && key >= keys[pos])
 				throw new BTreeWrongKeyOrder();
 
 			if (rightchild == null & !isLeaf)
@@ -274,22 +1076,35 @@ public class BTree {
 		}
 
 		// insert to not full node
-		public void insertkey(BTreeObject key, int pos, BTreeNode rightchild)
-				throws BTreeWrongKeyOrder, BTreeFullNode, BTreeNoInternalNodeChild, IOException {
-			if (keycount == maxkeycount)
+		public void insertkey(long key, long count, int pos, BTreeNode rightchild) throws BTreeWrongKeyOrder,
+				BTreeFullNode, BTreeNoInternalNodeChild, BTreeWrongBlockID, BTreeBadMetadata, IOException {
+			if (isFull())
 				throw new BTreeFullNode();
 			checkKeyOrder(key, pos, rightchild); // check key order for insert position
-			for (int i = keycount; i > pos; i--) { // move keys from insert pos to the right
-				keys[i] = keys[i - 1]; // free from the right all the way to insert position
+			if (!isLeaf) // child and maximum of a split below change the size too
+				changed();
+			else if (encsize >= 0) { // key difference to the neighbours, the counter
+				long prev = pos > 0 ? keys[pos - 1] : 0; // first key is kept whole
+				encsize += Varint.size(key - prev) + Varint.size(count);
+				if (pos < keycount)
+					encsize += Varint.size(keys[pos] - key) - Varint.size(keys[pos] - prev);
 			}
+			// move keys from insert pos to the right, free from the right all the way to
+			// insert position
+			System.arraycopy(keys, pos, keys, pos + 1, keycount - pos);
+			System.arraycopy(counts, pos, counts, pos + 1, keycount - pos);
 			keys[pos] = key; // put key to insert position
+			counts[pos] = count;
 			if (!isLeaf) { // move all the right children by one to the right
 				for (int i = keycount; i > pos; i--) {
 					children[i + 1] = children[i];
 				}
-				children[pos + 1] = rightchild.id; // insert the right child
-				rightchild.id_parent = this.id; // update right child's parent id
-				rightchild.save(); // save the right child
+				children[pos + 1] = rightchild.id; // insert the right child, saved by its split
+				if (maxcounts) { // left child may have been split, both get their maximum
+					System.arraycopy(submax, pos + 1, submax, pos + 2, keycount - pos);
+					submax[pos] = getNode(children[pos]).subtreeMax();
+					submax[pos + 1] = rightchild.subtreeMax();
+				}
 			}
 			keycount++; // advance key count
 			save(); // save current node
@@ -297,173 +1112,408 @@ public class BTree {
 
 		// inserts into full node by splitting it on the median and pushing the median
 		// to the parent node
-		public MedianNode splitNode(BTreeObject key, int pos, BTreeNode rightchild) throws BTreeNotFullNode,
+		public MedianNode splitNode(long key, long count, int pos, BTreeNode rightchild) throws BTreeNotFullNode,
 				BTreeWrongKeyOrder, BTreeNoInternalNodeChild, BTreeWrongBlockID, BTreeBadMetadata, IOException {
-			if (keycount < maxkeycount) // check if node is not full
+			if (!isFull()) // check if node is not full
 				throw new BTreeNotFullNode();
+			if (metrics != null)
+				metrics.splits.increment();
 			checkKeyOrder(key, pos, rightchild); // check if insertion position is correct
-			long[] tmpchildren = new long[order + 1]; // allocate temp array for children with one extra space
-			BTreeObject[] tmpkeys = new BTreeObject[maxkeycount + 1]; // allocate temp array for keys with one extra
-																		// space
+			if (splitkeys == null) { // temp arrays for keys, counters, children and maxima with one extra space
+				splitkeys = new long[nodekeys + 1];
+				splitcounts = new long[nodekeys + 1];
+				splitchildren = new long[nodekeys + 2];
+				splitmax = maxcounts ? new long[nodekeys + 2] : null;
+			}
+			int total = keycount + 1; // keys in the temp arrays
+			long[] tmpchildren = splitchildren;
+			long[] tmpkeys = splitkeys;
+			long[] tmpcounts = splitcounts;
+			long[] tmpsubmax = isLeaf ? null : splitmax; // maxima go with the children
 			for (int i = 0; i < pos; i++) { // move all the keys and left children before the insert position to temp
 											// array
 				tmpkeys[i] = keys[i];
+				tmpcounts[i] = counts[i];
 				tmpchildren[i] = children[i];
-				keys[i] = null;
 			}
 			tmpchildren[pos] = children[pos]; // move the left child of the insert position
 			tmpkeys[pos] = key; // insert the key
+			tmpcounts[pos] = count;
 			if (!isLeaf) { // if not a leaf
 				tmpchildren[pos + 1] = rightchild.id; // insert the new right child to the right of insert position
 			}
 			for (int i = pos; i < keycount; i++) { // move the rest of the keys and right children
 				tmpkeys[i + 1] = keys[i];
+				tmpcounts[i + 1] = counts[i];
 				tmpchildren[i + 2] = children[i + 1];
-				keys[i] = null;
+			}
+			if (tmpsubmax != null) { // same moves for the maxima, the left child may have been split
+				System.arraycopy(submax, 0, tmpsubmax, 0, pos);
+				System.arraycopy(submax, pos + 1, tmpsubmax, pos + 2, keycount - pos);
+				tmpsubmax[pos] = getNode(children[pos]).subtreeMax();
+				tmpsubmax[pos + 1] = rightchild.subtreeMax();
 			}
 
-			int mid = tmpkeys.length / 2; // identify median index
+			int mid = total / 2; // identify median index
+			changed();
 			keycount = mid; // old location keep keys and children left to median
 			for (int i = 0; i < keycount; i++) { // move the keys and left children before median to their original node
 				children[i] = tmpchildren[i];
 				keys[i] = tmpkeys[i];
+				counts[i] = tmpcounts[i];
 			}
 			children[mid] = tmpchildren[mid]; // move the last right child to the original node
-			BTreeNode newnode = new BTreeNode(nodecount++, id_parent, isLeaf); // create new node
+			if (tmpsubmax != null)
+				System.arraycopy(tmpsubmax, 0, submax, 0, mid + 1);
+			BTreeNode newnode = newNode(nodecount++, isLeaf); // create new node
+			boolean copyup = linked && isLeaf; // linked leaf keeps the median, its copy goes up
+			if (copyup) { // new leaf goes into the chain right after this one
+				newnode.next = next;
+				next = newnode.id;
+			}
 
-			for (int j = 0, i = (mid + 1); i < tmpkeys.length; i++, j++) { // move keys and left children past the
+			for (int j = 0, i = copyup ? mid : (mid + 1); i < total; i++, j++) { // move keys and left children past the
 																			// median to the new node
 				newnode.keys[j] = tmpkeys[i]; // move the key
-				if (!isLeaf) {
-					BTreeNode tmpchild = getNode(tmpchildren[i]); // go into each child and update the parent
-					newnode.children[j] = tmpchild.id;
-					tmpchild.id_parent = newnode.id;
-					tmpchild.save();
-				}
-			}
-			newnode.keycount = tmpkeys.length - (mid + 1); // update key count for a new node
-			if (!isLeaf) {
-				BTreeNode tmpchild = getNode(tmpchildren[tmpchildren.length - 1]);
-				newnode.children[newnode.keycount] = tmpchild.id; // move and update the last right child
-				tmpchild.id_parent = newnode.id;
-				tmpchild.save();
+				newnode.counts[j] = tmpcounts[i];
+				if (!isLeaf)
+					newnode.children[j] = tmpchildren[i]; // children know no parent, they stay as they are
 			}
+			newnode.keycount = total - (copyup ? mid : (mid + 1)); // update key count for a new node
+			if (tmpsubmax != null)
+				System.arraycopy(tmpsubmax, mid + 1, newnode.submax, 0, newnode.keycount + 1);
+			if (!isLeaf)
+				newnode.children[newnode.keycount] = tmpchildren[total]; // move the last right child
 			this.save(); // save current node
 			newnode.save(); // save split node
-			return new MedianNode(tmpkeys[mid], this, newnode); // return median key with left child and right child
+			return new MedianNode(tmpkeys[mid], tmpcounts[mid], this, newnode); // return median key with left child and right child
 		}
 
-		// save function saves to storage or cache if using cache
+		// save function saves to storage or cache if using cache, cached node is
+		// only marked dirty and written when evicted or flushed
 		void save() throws IOException {
 			if (cache == null)
 				saveToStorage();
-			else
+			else {
+				dirty = true;
 				cache.AddToCache(this);
+			}
 		}
 
 		// physically saves node to the file
 		void saveToStorage() throws IOException {
-			// Make sure the file is long enough
-			long needfilesize = getNodeOffset(id + 1); // allocate the file space for the node
-			if (storage.length() < needfilesize)
-				storage.setLength(needfilesize);
-			storage.seek(getNodeOffset(id)); // navigate to node location in file
-			byte[] buff = new byte[nodesize]; // allocate the byte buffer to hold the node
-			LongBuffer l = ByteBuffer.wrap(buff).asLongBuffer(); // set up as buffer of long
-			l.put(id); // put node id
-			l.put(id_parent); // put parent id
-			l.put((((long) keycount) << 8) | (isLeaf ? 1 : 0)); // combine and write 4 byte key count and boolean id
-																// into 8 byte
-			for (long cref : children) {
-				l.put(cref); // write each child id
-			}
-			for (int i = 0; i < keycount; i++) { // for every valid key ask it to write itself to the buffer
-				keys[i].toBuffer(l);
-			}
-			storage.write(buff); // write buffer to file
+			writeTo(storage);
+		}
+
+		// encodes the node into its block of the storage, which may be another tree file
+		// of the same layout
+		void writeTo(NodeStorage storage) throws IOException {
+			ByteBuffer l = storage.writeNode(id); // buffer for the node, file space allocated if needed
+			l.putLong(id); // put node id, no parent id, only trees of the current format are written
+			l.putLong((((long) keycount) << 8) | (isLeaf ? 1 : 0)); // combine and write 4 byte key count and boolean
+																		// id into 8 byte
+			if (compressed) { // same parts as below, varints and key differences
+				if (linked && isLeaf)
+					l.putLong(next);
+				if (!isLeaf)
+					for (int i = 0; i <= keycount; i++)
+						Varint.put(l, children[i]);
+				for (int i = 0; i < keycount; i++) {
+					Varint.put(l, i == 0 ? keys[0] : keys[i] - keys[i - 1]);
+					if (isLeaf || !linked)
+						Varint.put(l, counts[i]);
+				}
+				if (maxcounts && !isLeaf)
+					for (int i = 0; i <= keycount; i++)
+						Varint.put(l, submax[i]);
+			} else if (linked && isLeaf) { // linked leaf: next leaf and keys with counters
+				l.putLong(next);
+				for (int i = 0; i < keycount; i++) {
+					l.putLong(keys[i]);
+					l.putLong(counts[i]);
+				}
+			} else if (linked) { // linked internal node: children and separators
+				for (long cref : children)
+					l.putLong(cref);
+				for (int i = 0; i < keycount; i++)
+					l.putLong(keys[i]);
+			} else {
+				for (long cref : children) {
+					l.putLong(cref); // write each child id
+				}
+				for (int i = 0; i < keycount; i++) { // write every valid key with its counter
+					l.putLong(keys[i]);
+					l.putLong(counts[i]);
+				}
+			}
+			if (maxcounts && !isLeaf && !compressed) // maxima of the children follow either layout
+				for (int i = 0; i <= keycount; i++)
+					l.putLong(submax[i]);
+			storage.commitNode(id, l); // write buffer to file
+			dirty = false;
+			if (metrics != null)
+				metrics.nodewrites.increment();
 		}
 
 		void loadFromStorage() throws IOException, BTreeWrongBlockID, BTreeBadMetadata {
-			storage.seek(getNodeOffset(id)); // navigate to node location file
-			byte[] buff = new byte[nodesize]; // allocate the byte buffer to hold the node
-			storage.read(buff); // reads buffer
-			LongBuffer l = ByteBuffer.wrap(buff).asLongBuffer(); // set up as buffer of long
-			long check_id = l.get(); // read data peice by peice
+			ByteBuffer l = storage.readNode(id); // buffer positioned at the node
+			if (metrics != null)
+				metrics.nodereads.increment();
+			long check_id = l.getLong(); // read data peice by peice
 			if (id != check_id)
 				throw new BTreeWrongBlockID(); // id from file matches the requested node id
-			id_parent = l.get(); // read parent
-			long tmp = l.get(); // read combined key count and leaf indicator
+			if (parentids)
+				l.getLong(); // skip parent of the older format
+			long tmp = l.getLong(); // read combined key count and leaf indicator
 			keycount = (int) (tmp >> 8); // extract key count
-			if (keycount > maxkeycount)
+			if (keycount > nodekeys)
 				throw new BTreeBadMetadata(); // check key count is valid
 			isLeaf = ((tmp & 1) == 1); // extract leaf indicator
-
-			for (int i = 0; i < children.length; i++) { // read children node ids
-				children[i] = l.get();
-			}
-			for (int i = 0; i < keycount; i++) { // tell keys to read themselves
-				keys[i] = new BTreeObject(0); // create empty key
-				keys[i].fromBuffer(l); // tell it to read itself
+			encsize = -1;
+
+			if (compressed) {
+				if (linked && isLeaf)
+					next = l.getLong();
+				if (!isLeaf)
+					for (int i = 0; i <= keycount; i++)
+						children[i] = Varint.get(l);
+				for (int i = 0; i < keycount; i++) {
+					keys[i] = i == 0 ? Varint.get(l) : keys[i - 1] + Varint.get(l);
+					if (isLeaf || !linked)
+						counts[i] = Varint.get(l);
+				}
+				if (maxcounts && !isLeaf)
+					for (int i = 0; i <= keycount; i++)
+						submax[i] = Varint.get(l);
+			} else if (linked && isLeaf) { // same layouts as saveToStorage
+				next = l.getLong();
+				for (int i = 0; i < keycount; i++) {
+					keys[i] = l.getLong();
+					counts[i] = l.getLong();
+				}
+			} else if (linked) {
+				for (int i = 0; i < children.length; i++)
+					children[i] = l.getLong();
+				for (int i = 0; i < keycount; i++)
+					keys[i] = l.getLong();
+			} else {
+				for (int i = 0; i < children.length; i++) { // read children node ids
+					children[i] = l.getLong();
+				}
+				for (int i = 0; i < keycount; i++) { // read keys with their counters
+					keys[i] = l.getLong();
+					counts[i] = l.getLong();
+				}
 			}
+			if (maxcounts && !isLeaf && !compressed)
+				for (int i = 0; i <= keycount; i++)
+					submax[i] = l.getLong();
+			storage.release(l); // everything is decoded
 			if (cache != null)
 				cache.AddToCache(this); // add node to cache if using cache
 
 		}
 	}
 
-	// obtain the node from cache or physical storage, provide id of node you want
-	private BTreeNode getNode(long id) throws IOException, BTreeWrongBlockID, BTreeBadMetadata {
+	// obtain the node from cache or physical storage, provide id of node you want,
+	// package visible for the benchmarks
+	BTreeNode getNode(long id) throws IOException, BTreeWrongBlockID, BTreeBadMetadata {
 		BTreeNode ret = null; // allocate reference to node
-		if (cache != null) // check if cache is not null try to obtain from cache
+		if (pinnedids != null && (ret = pinnedNode(id)) != null) {
+			if (metrics != null)
+				metrics.pinnedhits.increment();
+			return ret;
+		}
+		if (cache != null) { // check if cache is not null try to obtain from cache
 			ret = cache.byNodeID(id);
+			if (metrics != null)
+				(ret != null ? metrics.cachehits : metrics.cachemisses).increment();
+		}
 		if (ret == null) { // if not using cache or node is not in cache
-			ret = new BTreeNode(id, -1, false); // create empty instance of the node
+			ret = newNode(id, false); // create empty instance of the node
 			ret.loadFromStorage(); // load it from storage
 		}
 		return ret;
 	}
 
+	// node of the top levels kept in memory, null if the id is not pinned
+	private BTreeNode pinnedNode(long id) {
+		if (pinnedids == null)
+			return null;
+		int i = Arrays.binarySearch(pinnedids, id);
+		return i >= 0 ? pinnednodes[i] : null;
+	}
+
+	// reads the top levels of a read only tree to keep them for good, whole levels
+	// only and as many as options.pinlevels and options.pinbytes allow, 0 means no
+	// limit. Lookups then read at most the levels below them from storage, however
+	// small the cache
+	private void pin() throws IOException, BTreeWrongBlockID, BTreeBadMetadata {
+		if (!readonly) // nodes would change behind the cache's back
+			throw new IllegalArgumentException("pinned levels need a read only tree");
+		int maxlevels = options.pinlevels > 0 ? options.pinlevels : Integer.MAX_VALUE;
+		long budget = options.pinbytes > 0 ? options.pinbytes : Long.MAX_VALUE;
+		long size = 8L * (3 * nodekeys + 1 + (maxcounts ? nodekeys + 1 : 0)) + 128; // memory of a node with its arrays
+		if (size > budget)
+			return;
+		long bytes = size;
+		ArrayList<BTreeNode> pinned = new ArrayList<BTreeNode>();
+		ArrayList<BTreeNode> level = new ArrayList<BTreeNode>();
+		level.add(rootnode);
+		for (int levels = 1;; levels++) {
+			pinned.addAll(level);
+			if (levels == maxlevels || level.get(0).isLeaf)
+				break;
+			long next = 0; // nodes of the next level
+			for (BTreeNode node : level)
+				next += node.keycount + 1;
+			if (bytes + next * size > budget)
+				break;
+			bytes += next * size;
+			ArrayList<BTreeNode> below = new ArrayList<BTreeNode>((int) next);
+			for (BTreeNode node : level)
+				for (int i = 0; i <= node.keycount; i++)
+					below.add(getNode(node.children[i]));
+			level = below;
+		}
+		Collections.sort(pinned, new Comparator<BTreeNode>() {
+			public int compare(BTreeNode a, BTreeNode b) {
+				return Long.compare(a.id, b.id);
+			}
+		});
+		pinnedids = new long[pinned.size()];
+		pinnednodes = pinned.toArray(new BTreeNode[pinned.size()]);
+		for (int i = 0; i < pinnedids.length; i++)
+			pinnedids[i] = pinnednodes[i].id;
+	}
+
+	// number of nodes of the top levels kept in memory
+	public int getPinnedCount() {
+		return pinnedids == null ? 0 : pinnedids.length;
+	}
+
+	// empty node, a spare one if there is any
+	private BTreeNode newNode(long id, boolean isLeaf) {
+		if (sparecount == 0)
+			return new BTreeNode(id, isLeaf);
+		BTreeNode node = spare[--sparecount];
+		spare[sparecount] = null;
+		node.reuse(id, isLeaf);
+		return node;
+	}
+
+	// an evicted node may still be in use by the operation that evicted it, it only
+	// becomes spare at the next seek
+	private void retire(BTreeNode node) {
+		if (pooling && retired.size() < spare.length)
+			retired.add(node);
+	}
+
+	// evicted nodes that did not come back into the cache become spare, the root
+	// is kept by the tree itself
+	private void recycle() {
+		if (retired.isEmpty())
+			return;
+		for (int i = 0; i < retired.size(); i++) {
+			BTreeNode node = retired.get(i);
+			if (!node.cached && !node.pooled && node != rootnode && sparecount < spare.length) {
+				node.pooled = true; // a node evicted twice is listed twice
+				spare[sparecount++] = node;
+			}
+		}
+		retired.clear();
+	}
+
 	/*
 	 * constructor initialize a tree with optimal degree or open existing tree
 	 */
 	public BTree(String fname, boolean readonly, boolean init, int cachesize)
 			throws IOException, BTreeBadMetadata, BTreeWrongBlockID {
+		this(fname, readonly, init, cachesize, new BTreeOptions());
+	}
+
+	/*
+	 * same as above with optional settings
+	 */
+	public BTree(String fname, boolean readonly, boolean init, int cachesize, BTreeOptions options)
+			throws IOException, BTreeBadMetadata, BTreeWrongBlockID {
+		this.options = options;
+		metrics = options.metrics ? new Metrics() : null;
 		if (init) { // initialize new tree
 			setupOptimalTree(); // figure out degree
 			init_btree(fname); // ready to initialize btree
 		} else { // if not asking to initialize just open btree
 			open_btree(fname, readonly);
 		}
-		setupCache(cachesize); // set up cache
+		if (metrics != null)
+			metrics.height = height();
 		this.readonly = readonly; // read only will be determined by arguement
+		if (options.pinlevels > 0 || options.pinbytes > 0)
+			pin(); // before the cache, pinned nodes never go into it
+		setupCache(cachesize); // set up cache
 	}
 
 	/*
 	 * constructor initialize the tree with specific degree
 	 */
 	public BTree(String fname, int degree, int cachesize) throws IOException {
+		this(fname, degree, cachesize, new BTreeOptions());
+	}
+
+	/*
+	 * same as above with optional settings
+	 */
+	public BTree(String fname, int degree, int cachesize, BTreeOptions options) throws IOException {
+		this.options = options;
+		metrics = options.metrics ? new Metrics() : null;
+		if (metrics != null)
+			metrics.height = 1; // single empty leaf
 		setupTreeFromDegree(degree); // calculate tree parameters based on degree
 		init_btree(fname); // initialize btree
-		setupCache(cachesize); // set up cache
 		readonly = false; // fresh tree
+		setupCache(cachesize); // set up cache
 	}
 
 	// initialize cache with given size if size more than zero
 	private void setupCache(int cachesize) {
+		if (options.concurrent && !readonly) // only trees nobody changes can be shared
+			throw new IllegalArgumentException("concurrent access needs a read only tree");
+		if (options.hotkeys > 0) { // cached counters must not change
+			if (!readonly)
+				throw new IllegalArgumentException("hot key cache needs a read only tree");
+			hotkeys = new HotKeyCache(options.hotkeys);
+		}
 		if (cachesize > 0) {
-			cache = new Cache(cachesize);
+			if (options.concurrent)
+				cache = new StripedCache(cachesize);
+			else if (options.cachepolicy == BTreeOptions.CachePolicy.LRU)
+				cache = new LRUCache(cachesize);
+			else
+				cache = new ClockCache(cachesize);
 		} else { // otherwise null
 			cache = null;
 		}
+		pooling = cache != null && !options.concurrent; // without a cache nothing is evicted
+	}
+
+	// creates the storage object for the tree file, nodesize has to be known
+	private void setupStorage(RandomAccessFile file, boolean readonly) throws IOException {
+		if (options.mapped) // writes are memory copies here, no need to write behind
+			storage = new MappedNodeStorage(file, nodesize, metaDatasize, readonly);
+		else if (options.writebehind > 0 && !readonly)
+			storage = new WriteBehindNodeStorage(file, nodesize, metaDatasize, options.writebehind);
+		else
+			storage = new FileNodeStorage(file, nodesize, metaDatasize);
 	}
 
 	// function to open btree and verify the metadata
 	private void open_btree(String fname, boolean readonly) throws IOException, BTreeBadMetadata, BTreeWrongBlockID {
-		storage = new RandomAccessFile(fname, readonly ? "r" : "rw"); // open file with desired mode read or write
+		RandomAccessFile file = new RandomAccessFile(fname, readonly ? "r" : "rw"); // open file with desired mode read
+																					// or write
 		byte[] buf = new byte[metaDatasize]; // allocate buffer to read metaData
 		LongBuffer l = ByteBuffer.wrap(buf).asLongBuffer(); // set up buffer as buffer for long
-		storage.seek(0); // move to pos zero in file
-		storage.read(buf); // read metaData
+		file.seek(0); // move to pos zero in file
+		file.read(buf); // read metaData
 		degree = (int) l.get(); // extract from metaData piece by piece
 		order = (int) l.get(); // reads the data in same order how save metaData writes them
 		maxkeycount = (int) l.get();
@@ -473,26 +1523,50 @@ public class BTree {
 		nodesize = (int) l.get(); // get nodesize
 		if (nodesize < getNodeDataSize(degree)) // nodesize cannot be smaller than the minimum size to store node data
 			throw new BTreeBadMetadata();
-		if (storage.length() != getNodeOffset(nodecount)) // check filesize vs node count
+		long needfilesize = getNodeOffset(nodecount);
+		if (file.length() < needfilesize) // check filesize vs node count
 			throw new BTreeWrongFileSize();
+		if (file.length() > needfilesize && !readonly) // a mapped tree that was not closed keeps its last segment
+			file.setLength(needfilesize); // whole, the node count tells where the tree ends
+		setupStorage(file, readonly); // metadata tells the node size, storage can be set up now
 		int objsize = (int) l.get(); // read objsize
 		if (objsize != BTreeObject.size) // checking its correct
 			throw new BTreeWrongObjectSize();
 		long rootid = l.get(); // obtain id of root node
 		if (getNodeOffset(1 + rootid) > storage.length()) // to make sure root id represents node in tree
 			throw new BTreeWrongRootNode();
+		flags = l.get(); // format flags, zero in older files
+		if ((flags & ~known_flags) != 0) // written by a newer version with features we don't know
+			throw new BTreeBadMetadata();
+		if (!readonly && (flags & FLAG_NO_PARENTS) == 0) // inserts would leave the parent ids wrong
+			throw new BTreeReadOnlyFormat();
+		seqlen = (int) l.get(); // sequence length or zero
+		setupNodeKeys(); // node layout depends on the flags
+		treefname = fname;
+		if (readonly) // filter of the same tree answers misses from memory
+			bloom = BloomFilter.load(bloomName(fname), nodecount, rootid);
+		else // keys added from now on would not be in the filter
+			new File(bloomName(fname)).delete();
 		rootnode = getNode(rootid); // read root node from file or cache
-
-		if (rootnode.id_parent != -1) // root node should have no parent
-			throw new BTreeWrongRootNode();
 	}
 
 	// new tree initialization assuming tree, degree, order, node size all set up
 	private void init_btree(String fname) throws IOException {
-		storage = new RandomAccessFile(fname + "." + degree, "rw"); // create the new tree file
-		storage.setLength(getNodeOffset(1)); // sets the length for metaData and node zero
+		treefname = fname + "." + degree;
+		RandomAccessFile file = new RandomAccessFile(treefname, "rw"); // create the new tree file
+		new File(bloomName(treefname)).delete(); // from an older tree of the same name
+		flags = (options.orderedkeys ? FLAG_ORDERED_KEYS : 0) | (options.linkedleaves ? FLAG_LINKED_LEAVES : 0)
+				| (options.compressed ? FLAG_COMPRESSED : 0)
+				| (options.canonical ? FLAG_CANONICAL : 0)
+				| (options.maxcounts ? FLAG_MAX_COUNTS : 0) | FLAG_NO_PARENTS; // new tree takes flags from options
+		if (options.compressed) // compressed nodes are whole blocks whatever the degree
+			nodesize = ((nodesize - 1) / def_blocksize + 1) * def_blocksize;
+		seqlen = options.seqlen;
+		setupNodeKeys();
+		file.setLength(getNodeOffset(1)); // sets the length for metaData and node zero
+		setupStorage(file, false);
 		nodecount = 1; // fresh tree only has one node
-		rootnode = new BTreeNode(0, -1, true); // create empty root node
+		rootnode = new BTreeNode(0, true); // create empty root node
 		rootnode.save(); // save root node
 		saveMetaData(); // save MetaData
 
@@ -500,6 +1574,11 @@ public class BTree {
 
 	// save tree MetaData
 	private void saveMetaData() throws IOException {
+		storage.writeMetaData(metaData(nodecount, rootnode.id, flags)); // write buffer to the beginning of file
+	}
+
+	// metadata block of a tree laid out like this one
+	private byte[] metaData(long nodecount, long rootid, long flags) {
 		byte[] buf = new byte[metaDatasize]; // create buffer
 		LongBuffer l = ByteBuffer.wrap(buf).asLongBuffer(); // set up as buffer of longs
 		l.put(degree); // put degree data
@@ -508,10 +1587,10 @@ public class BTree {
 		l.put(nodecount); // put node count how many nodes in tree
 		l.put(nodesize); // put node size
 		l.put(BTreeObject.size); // size of the key object
-		l.put(rootnode.id); // id of the root node, where it starts
-		storage.seek(0); // navigate to beginning of file
-		storage.write(buf); // write buffer to file
-
+		l.put(rootid); // id of the root node, where it starts
+		l.put(flags); // format flags
+		l.put(seqlen); // sequence length of the keys
+		return buf;
 	}
 
 	// calculates optimal degree order max key count and node size
@@ -532,45 +1611,160 @@ public class BTree {
 
 	}
 
+	// keys per node from the node size, linked leaf trees keep no counters in
+	// internal nodes and no children in leaves
+	private void setupNodeKeys() {
+		linked = (flags & FLAG_LINKED_LEAVES) != 0;
+		compressed = (flags & FLAG_COMPRESSED) != 0;
+		maxcounts = (flags & FLAG_MAX_COUNTS) != 0;
+		parentids = (flags & FLAG_NO_PARENTS) == 0;
+		if (compressed) // a key takes at least two bytes, the encoded size decides when a node is full
+			nodekeys = (nodesize - node_overhead) / 2;
+		else if (linked && maxcounts) // internal node: extra child and its maximum, then child, key and maximum
+			nodekeys = (nodesize - node_overhead - 16) / 24;
+		else if (linked) // header, next leaf or the extra child, then 16 bytes per key
+			nodekeys = (nodesize - node_overhead - 8) / BTreeObject.size;
+		else if (maxcounts) // as below with a maximum per child, fewer keys fit the node
+			nodekeys = (nodesize - node_overhead - 16) / (16 + BTreeObject.size);
+		else
+			nodekeys = maxkeycount;
+	}
+
+	// true if leaves are linked and only they hold counters
+	public boolean isLinkedLeaves() {
+		return linked;
+	}
+
+	// true if keys use the order preserving DNA encoding
+	public boolean isOrderedKeys() {
+		return (flags & FLAG_ORDERED_KEYS) != 0;
+	}
+
+	// name of the Bloom filter sidecar of a tree file
+	public static String bloomName(String treefname) {
+		return treefname + ".bloom";
+	}
+
+	// writes the Bloom filter sidecar for the keys in the tree with the false
+	// positive rate fpp. Read only opens of the unchanged tree use it to answer
+	// misses without reading nodes, opening the tree for writing removes it
+	public void writeBloomFilter(double fpp) throws BTreeWrongBlockID, BTreeBadMetadata, IOException {
+		long keys = 0;
+		Cursor cursor = scan(Long.MIN_VALUE, Long.MAX_VALUE); // count first to size the filter
+		while (cursor.next())
+			keys++;
+		BloomFilter filter = new BloomFilter(keys, fpp);
+		cursor = scan(Long.MIN_VALUE, Long.MAX_VALUE);
+		while (cursor.next())
+			filter.add(cursor.key());
+		filter.save(bloomName(treefname), nodecount, rootnode.id);
+	}
+
+	// true if read only lookups check a Bloom filter first
+	public boolean hasBloomFilter() {
+		return bloom != null;
+	}
+
+	// true if internal nodes keep the largest counter of every subtree
+	public boolean hasMaxCounts() {
+		return maxcounts;
+	}
+
+	// true if keys are canonical, the smaller key of a sequence and its reverse
+	// complement
+	public boolean isCanonical() {
+		return (flags & FLAG_CANONICAL) != 0;
+	}
+
+	// counters and latencies of the tree, null if it was opened without
+	// BTreeOptions.metrics
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	// levels from the root down the left edge to a leaf
+	private int height() throws IOException, BTreeWrongBlockID, BTreeBadMetadata {
+		int levels = 1;
+		for (BTreeNode node = rootnode; !node.isLeaf; node = getNode(node.children[0]))
+			levels++;
+		return levels;
+	}
+
+	// number of nodes in the tree file
+	public long getNodeCount() {
+		return nodecount;
+	}
+
+	// name of the tree file, with the degree a new tree adds to it
+	public String getFileName() {
+		return treefname;
+	}
+
+	// sequence length recorded when the tree was created, 0 if not known
+	public int getSeqLen() {
+		return seqlen;
+	}
+
 	public void shutdown() throws IOException {
 		if (!readonly) { // if not open for read only save data
 			if (cache != null) // active cache save everything to disk
 				cache.flush();
 			saveMetaData(); // save tree MetaData
 		}
-		storage.close(); // close the file
+		storage.close(nodecount); // close the file
 	}
 
 	/*
-	 * inner cache class
+	 * inner cache class, holds recently used nodes so they are not read again
 	 */
-	class Cache {
-		class NodeTS { // holds node id and time stamp of last access for cleanup queue
-			public long node_id; // initialize
-			public long lastaccess;
-
-			public NodeTS(long node_id, long ts) {
-				this.node_id = node_id;
-				this.lastaccess = ts;
-			}
-		}
-
+	abstract class Cache {
 		/*
-		 * cache entry for the key stores the key the node that contains key and
-		 * position of key in node
+		 * cache entry for the key stores the node that contains key and position of
+		 * key in node
 		 */
 		class NodeKeyPos {
 			BTreeNode node;
-			BTreeObject key;
 			int pos;
 
-			public NodeKeyPos(BTreeNode node, BTreeObject key, int pos) {
+			public NodeKeyPos(BTreeNode node, int pos) {
 				this.node = node;
-				this.key = key;
 				this.pos = pos;
 			}
 		}
 
+		// physically writes the cache contents to the disk
+		public abstract void flush() throws IOException;
+
+		// look up by node id
+		public abstract BTreeNode byNodeID(long node_id) throws IOException;
+
+		// true if the node is in the cache, does not count as an access
+		public abstract boolean holds(long node_id);
+
+		// look up by key, only caches that keep track of keys can answer
+		public NodeKeyPos byKey(long needkey) {
+			return null;
+		}
+
+		// how you add node to cache
+		public abstract void AddToCache(BTreeNode node) throws IOException;
+	}
+
+	/*
+	 * cache which evicts the node with the oldest access, also keeps every key of
+	 * cached nodes so lookups of cached keys skip the tree walk
+	 */
+	class LRUCache extends Cache {
+		class NodeTS { // holds node id and time stamp of last access for cleanup queue
+			public long node_id; // initialize
+			public long lastaccess;
+
+			public NodeTS(long node_id, long ts) {
+				this.node_id = node_id;
+				this.lastaccess = ts;
+			}
+		}
+
 		private HashMap<Long, BTreeNode> nodemap; // hashmap to look up node instance by node id
 		private HashMap<Long, Long> nodetsmap; // hashmap for node id and last access time stamp
 		private HashMap<Long, NodeKeyPos> keymap; // hashmap for keys to look up node key position
@@ -580,7 +1774,7 @@ public class BTree {
 		 * constructor initializes all as empty and sets size to desired size
 		 */
 
-		public Cache(int size) {
+		public LRUCache(int size) {
 			this.size = size;
 			nodemap = new HashMap<Long, BTreeNode>();
 			keymap = new HashMap<Long, NodeKeyPos>();
@@ -588,14 +1782,15 @@ public class BTree {
 			cleanupqueue = new LinkedList<NodeTS>();
 		}
 
-		// physically writes the cache contents to the disk
+		@Override
 		public void flush() throws IOException {
 			for (BTreeNode node : nodemap.values()) {
-				node.saveToStorage(); // tell each node to save itself
+				if (node.dirty)
+					node.saveToStorage(); // tell each changed node to save itself
 			}
 		}
 
-		// look up by node id
+		@Override
 		public BTreeNode byNodeID(long node_id) throws IOException {
 			BTreeNode ret = nodemap.get(node_id);
 			if (ret != null)
@@ -603,19 +1798,28 @@ public class BTree {
 			return ret;
 		}
 
+		@Override
+		public boolean holds(long node_id) {
+			return nodemap.containsKey(node_id);
+		}
+
+		@Override
 		public NodeKeyPos byKey(long needkey) {
-			return keymap.get(needkey); // lookup class that holds node key and position by key
+			NodeKeyPos ret = keymap.get(needkey); // lookup class that holds node and position by key
+			if (ret != null && (ret.pos >= ret.node.keycount || ret.node.keys[ret.pos] != needkey))
+				return null; // key has moved since the node was cached, let the tree walk find it
+			return ret;
 		}
 
-		// how you add node to cache
+		@Override
 		public void AddToCache(BTreeNode node) throws IOException {
 			nodemap.put(node.id, node); // put node to hashmap by its node id
+			node.cached = true;
 			long ts = System.nanoTime(); // mark the time stamp
 			nodetsmap.put(node.id, ts); // put the time stamp to the hashmap of time stamps by node id
 			cleanupqueue.add(new NodeTS(node.id, ts)); // puts the node id with current time stamp in the clean up queue
-			for (int i = 0; i < node.keycount; i++) { // put all keys from the node to the key
-				keymap.put(node.keys[i].getKey(), new NodeKeyPos(node, node.keys[i], i)); // builds structure for where
-																							// to find key
+			for (int i = 0; i < node.keycount && (node.isLeaf || !linked); i++) { // put all keys from the node to the key
+				keymap.put(node.keys[i], new NodeKeyPos(node, i)); // builds structure for where to find key
 			}
 			while (nodemap.size() > this.size) { // make sure we don't hold more nodes than cache size
 				NodeTS cand = cleanupqueue.removeFirst(); // take oldest entry from clean up queue
@@ -625,74 +1829,448 @@ public class BTree {
 																		// current time stamp is larger than the one
 																		// saved in clean up queue
 					BTreeNode delnode = nodemap.get(cand.node_id); // if not the case, proceed to deleting node
-					for (int i = 0; i < delnode.keycount; i++) {
-						keymap.remove(delnode.keys[i].getKey()); // delete all keys from keymap that belong to this node
+					for (int i = 0; i < delnode.keycount && (delnode.isLeaf || !linked); i++) {
+						keymap.remove(delnode.keys[i]); // delete all keys from keymap that belong to this node
 					}
 					nodetsmap.remove(delnode.id); // remove the current time stamp from this node
 					nodemap.remove(delnode.id); // remove the node itself from cache
-					if (!readonly) // if not read only, save the node
+					if (!readonly && delnode.dirty) // if not read only and changed, save the node
 						delnode.saveToStorage();
+					delnode.cached = false;
+					retire(delnode);
+					if (metrics != null)
+						metrics.evictions.increment();
 				}
-				if (DebugPrint.debuglevel > 0) { // prints cache statistics
-					DebugPrint.message(String.format("Cache: nodes %d, keys %d, cleanup queue %d nodes", nodemap.size(),
-							keymap.size(), cleanupqueue.size()));
+			}
 
-				}
+		}
+
+	}
+
+	/*
+	 * cache with CLOCK (second chance) eviction. Node ids map to slots through a
+	 * primitive hash table, every slot has a reference bit which is set on
+	 * access. The clock hand sweeps the slots clearing the bits and evicts the
+	 * first node whose bit is already clear. Memory is fixed by the cache size and
+	 * a hit allocates nothing
+	 */
+	class ClockCache extends Cache {
+		private BTreeNode[] slots; // cached nodes
+		private boolean[] referenced; // reference bit of every slot
+		private LongIntMap slotbyid; // slot index by node id
+		private int used; // slots filled so far, slots fill up from the start
+		private int hand; // clock hand, next slot to check for eviction
+
+		public ClockCache(int size) {
+			slots = new BTreeNode[size];
+			referenced = new boolean[size];
+			slotbyid = new LongIntMap(size);
+			used = 0;
+			hand = 0;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			for (int i = 0; i < used; i++) {
+				if (slots[i].dirty)
+					slots[i].saveToStorage(); // tell each changed node to save itself
 			}
+		}
+
+		@Override
+		public BTreeNode byNodeID(long node_id) {
+			int slot = slotbyid.get(node_id);
+			if (slot < 0)
+				return null;
+			referenced[slot] = true; // give it a second chance
+			return slots[slot];
+		}
+
+		@Override
+		public boolean holds(long node_id) {
+			return slotbyid.get(node_id) >= 0;
+		}
 
+		@Override
+		public void AddToCache(BTreeNode node) throws IOException {
+			int slot = slotbyid.get(node.id);
+			if (slot < 0) { // new node, take a free slot or free one up
+				slot = used < slots.length ? used++ : evict();
+				slotbyid.put(node.id, slot);
+			}
+			slots[slot] = node;
+			node.cached = true;
+			referenced[slot] = true;
 		}
 
+		// moves the hand to the first node without reference bit, writes it out and
+		// returns its slot
+		private int evict() throws IOException {
+			while (referenced[hand]) {
+				referenced[hand] = false;
+				hand = (hand + 1) % slots.length;
+			}
+			int slot = hand;
+			hand = (hand + 1) % slots.length;
+			BTreeNode delnode = slots[slot];
+			slotbyid.remove(delnode.id);
+			if (!readonly && delnode.dirty) // if not read only and changed, save the node
+				delnode.saveToStorage();
+			delnode.cached = false;
+			retire(delnode);
+			if (metrics != null)
+				metrics.evictions.increment();
+			return slot;
+		}
 	}
 
 	/*
-	 * helper class for the dump to bind key and right child to store in the
-	 * tovisitStack
+	 * cache for read only trees searched from many threads. Node ids are spread
+	 * over independent CLOCK caches, each guarded by its own lock, so threads only
+	 * wait for each other when they touch the same stripe at the same time. Nodes
+	 * of a read only tree never change, so a node taken out of the cache can be
+	 * used without a lock
 	 */
-	class KeyRightChild {
-		public BTreeObject key;
-		public long right;
+	class StripedCache extends Cache {
+		private ClockCache[] stripes; // independent caches, each one is its own lock
+
+		public StripedCache(int size) {
+			int count = Integer.highestOneBit(Math.max(1, Math.min(64, size / 16))); // power of two, 16 nodes each
+			stripes = new ClockCache[count];
+			for (int i = 0; i < count; i++)
+				stripes[i] = new ClockCache((size + count - 1) / count);
+		}
 
-		public KeyRightChild(BTreeObject key, long right) {
-			this.key = key;
-			this.right = right;
+		// stripe responsible for the node id
+		private ClockCache stripe(long node_id) {
+			long h = node_id * 0x9E3779B97F4A7C15L;
+			return stripes[(int) (h >>> 32) & (stripes.length - 1)];
+		}
+
+		@Override
+		public void flush() throws IOException {
+			for (ClockCache stripe : stripes) {
+				synchronized (stripe) {
+					stripe.flush();
+				}
+			}
+		}
+
+		@Override
+		public BTreeNode byNodeID(long node_id) {
+			ClockCache stripe = stripe(node_id);
+			synchronized (stripe) {
+				return stripe.byNodeID(node_id);
+			}
+		}
+
+		@Override
+		public boolean holds(long node_id) {
+			ClockCache stripe = stripe(node_id);
+			synchronized (stripe) {
+				return stripe.holds(node_id);
+			}
+		}
+
+		@Override
+		public void AddToCache(BTreeNode node) throws IOException {
+			ClockCache stripe = stripe(node.id);
+			synchronized (stripe) {
+				stripe.AddToCache(node);
+			}
 		}
 	}
 
 	// dump tree in the inorder (LNR)
-	// using non recursive algorithm with stack
+	// using the cursor, which follows the leaf chain if leaves are linked
 	public void dump(int seqlen, String dumpfname)
 			throws DNAWrongSequenceLength, IOException, BTreeWrongBlockID, BTreeBadMetadata {
-		LinkedList<KeyRightChild> tovisitStack = new LinkedList<KeyRightChild>(); // stack of left behind nodes
 		BufferedWriter buff = new BufferedWriter(new FileWriter(dumpfname)); // output file
-		BTreeNode curnode = rootnode; // start from the root node
-		while (curnode != null) { // until there are no more nodes
-			if (curnode.isLeaf) { // check if node is leaf or not
-				for (int i = 0; i < curnode.keycount; i++) { // output all the keys from left to right
-					BTreeObject o = curnode.keys[i];
-					buff.write(o.getCounter() + " " + DNASequence.getDNAString(seqlen, o.getKey()));
-					buff.newLine();
-				} // after you output leaf content check the tovisitStack for left behind branches
-					// of tree
-				if (tovisitStack.isEmpty())
-					curnode = null;
-				else { // if not empty extract very first entry and traverse
-					KeyRightChild nxt = tovisitStack.removeFirst();
-					// output the key left behind
-					buff.write(nxt.key.getCounter() + " " + DNASequence.getDNAString(seqlen, nxt.key.getKey()));
-					buff.newLine();
-					curnode = getNode(nxt.right); // proceed to right child
+		try {
+			dump(seqlen, buff);
+		} finally {
+			buff.close();
+		}
+	}
+
+	// same as above to an open writer, which stays open
+	public void dump(int seqlen, BufferedWriter buff)
+			throws DNAWrongSequenceLength, IOException, BTreeWrongBlockID, BTreeBadMetadata {
+		Cursor cursor = scan(Long.MIN_VALUE, Long.MAX_VALUE); // every key from the smallest
+		while (cursor.next()) {
+			buff.write(cursor.count() + " " + DNASequence.getDNAString(seqlen, cursor.key(), isOrderedKeys()));
+			buff.newLine();
+		}
+	}
+
+	// writes the keys from lo to hi, both included, with their counters as pairs of
+	// big endian longs. On a read only tree the nodes after the current one are read
+	// ahead in the background, readahead children per node. Returns the pairs written
+	public long dumpBinary(String dumpfname, long lo, long hi, int readahead)
+			throws IOException, BTreeWrongBlockID, BTreeBadMetadata {
+		BinaryDumper dumper = new BinaryDumper(dumpfname, lo, hi, readahead);
+		try {
+			dumper.walk(rootnode);
+		} finally {
+			dumper.close();
+		}
+		return dumper.pairs;
+	}
+
+	// splits the keys by separators of the root into at most parts ranges and dumps
+	// every range on its own thread to dumpfname.<part>, one part goes to dumpfname.
+	// More than one part needs a read only tree without cache or with a concurrent
+	// one. Returns the number of parts written
+	public int dumpBinary(final String dumpfname, int parts, final int readahead)
+			throws IOException, BTreeWrongBlockID, BTreeBadMetadata, InterruptedException {
+		if (parts <= 1 || rootnode.keycount == 0) {
+			dumpBinary(dumpfname, Long.MIN_VALUE, Long.MAX_VALUE, readahead);
+			return 1;
+		}
+		if (!readonly || (cache != null && !options.concurrent))
+			throw new IllegalArgumentException("parallel dump needs a read only tree, concurrent if cached");
+		ArrayList<Long> bounds = new ArrayList<Long>(); // first key of every range after the first
+		for (int j = 1; j < parts; j++) {
+			long bound = rootnode.keys[(int) ((long) j * rootnode.keycount / parts)];
+			if (bounds.isEmpty() || bounds.get(bounds.size() - 1) < bound)
+				bounds.add(bound);
+		}
+		final int count = bounds.size() + 1;
+		final Exception[] errors = new Exception[count];
+		Thread[] dumpers = new Thread[count];
+		for (int j = 0; j < count; j++) {
+			final int part = j;
+			final long lo = j == 0 ? Long.MIN_VALUE : bounds.get(j - 1);
+			final long hi = j == count - 1 ? Long.MAX_VALUE : bounds.get(j) - 1;
+			dumpers[j] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						dumpBinary(dumpfname + "." + part, lo, hi, readahead);
+					} catch (Exception e) {
+						errors[part] = e;
+					}
+				}
+			}, "btree-dump-" + j);
+			dumpers[j].start();
+		}
+		for (Thread t : dumpers)
+			t.join();
+		for (Exception e : errors) {
+			if (e instanceof IOException)
+				throw (IOException) e;
+			if (e instanceof BTreeWrongBlockID)
+				throw (BTreeWrongBlockID) e;
+			if (e instanceof BTreeBadMetadata)
+				throw (BTreeBadMetadata) e;
+			if (e != null)
+				throw new RuntimeException(e);
+		}
+		return count;
+	}
+
+	/*
+	 * walks the subtrees holding the range depth first and writes the pairs into a
+	 * large buffer. Before a child is visited the next readahead children of the same
+	 * node are handed to the storage to be read in the background, so the disk is
+	 * busy while the pairs of the current child are written out
+	 */
+	class BinaryDumper {
+		private FileChannel out; // output file
+		private ByteBuffer buf = ByteBuffer.allocate(1 << 20); // pairs waiting to be written
+		private long lo, hi; // range of keys, both included
+		private int readahead; // children read ahead per node, 0 for none
+		long pairs; // pairs written so far
+
+		BinaryDumper(String dumpfname, long lo, long hi, int readahead) throws IOException {
+			out = new FileOutputStream(dumpfname).getChannel();
+			this.lo = lo;
+			this.hi = hi;
+			this.readahead = readonly ? readahead : 0; // nodes of a changing tree may be newer in memory
+		}
+
+		// appends the pair if it is in the range
+		private void emit(long key, long count) throws IOException {
+			if (key < lo || key > hi)
+				return;
+			if (buf.remaining() < 16)
+				flush();
+			buf.putLong(key);
+			buf.putLong(count);
+			pairs++;
+		}
+
+		private void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining())
+				out.write(buf);
+			buf.clear();
+		}
+
+		void walk(BTreeNode node) throws IOException, BTreeWrongBlockID, BTreeBadMetadata {
+			if (node.isLeaf) {
+				for (int i = node.searchkey(lo); i < node.keycount && node.keys[i] <= hi; i++)
+					emit(node.keys[i], node.counts[i]);
+				return;
+			}
+			int first = node.childpos(node.searchkey(lo), lo); // child holding lo
+			int last = node.childpos(node.searchkey(hi), hi); // child holding hi
+			int requested = first; // children before this one were handed to the storage
+			for (int i = first; i <= last; i++) {
+				for (; requested <= last && requested <= i + readahead; requested++) {
+					long id = node.children[requested];
+					if (readahead > 0 && (cache == null || !cache.holds(id)) && pinnedNode(id) == null)
+						storage.prefetch(id);
+				}
+				BTreeNode child = getNode(node.children[i]);
+				walk(child);
+				if (!linked && i < node.keycount) // separator of a B tree is a key with counter
+					emit(node.keys[i], node.counts[i]);
+			}
+		}
+
+		void close() throws IOException {
+			flush();
+			out.close();
+		}
+	}
+
+	// order relayout writes the nodes below the breadth first top levels in
+	public enum Layout {
+		VEB, // van Emde Boas: upper half of a subtree, then the subtrees below it, recursively
+		DFS // every subtree as one run, a node right before its children
+	}
+
+	// writes a copy of the tree to outfname with the nodes renumbered for locality.
+	// The top levels are written breadth first while they hold at most bfsnodes
+	// nodes, then every subtree below them as one run of nodes in the given layout,
+	// so a lookup reads nodes close to each other instead of wherever the inserts
+	// allocated them. The copy is in the current format, nodes no lookup reaches are
+	// left out and a Bloom filter sidecar is copied along. Needs a read only tree
+	// without cache. Returns the number of nodes written
+	public long relayout(String outfname, Layout layout, int bfsnodes)
+			throws IOException, BTreeWrongBlockID, BTreeBadMetadata {
+		if (!readonly || cache != null)
+			throw new IllegalArgumentException("relayout needs a read only tree without cache");
+		if (new File(outfname).getCanonicalPath().equals(new File(treefname).getCanonicalPath()))
+			throw new IllegalArgumentException("relayout can't write over its own tree");
+		Relayout relayout = new Relayout(layout);
+		relayout.order(bfsnodes);
+		return relayout.write(outfname);
+	}
+
+	/*
+	 * new numbering of the nodes for relayout. The children of every internal node
+	 * are read level by level first, leaves are not read, and the new ids handed out
+	 * from them. Then every node is read once more in new id order, its references
+	 * changed to new ids and written to the new file, which grows front to back
+	 */
+	class Relayout {
+		private Layout layout;
+		private int height; // levels of the tree
+		private long[][] kids; // children by old id, null for leaves
+		private long[] newid; // new id by old id, -1 for nodes not reached
+		private long[] oldid; // old id by new id
+		private int count; // new ids handed out
+
+		Relayout(Layout layout) {
+			this.layout = layout;
+		}
+
+		void order(int bfsnodes) throws IOException, BTreeWrongBlockID, BTreeBadMetadata {
+			height = height();
+			kids = new long[(int) nodecount][];
+			newid = new long[(int) nodecount];
+			Arrays.fill(newid, -1);
+			oldid = new long[(int) nodecount];
+			long[][] levels = new long[height][]; // old ids of every level, left to right
+			levels[0] = new long[] { rootnode.id };
+			for (int d = 0; d + 1 < height; d++) {
+				int n = 0;
+				for (long id : levels[d]) {
+					BTreeNode node = getNode(id);
+					kids[(int) id] = Arrays.copyOf(node.children, node.keycount + 1);
+					n += node.keycount + 1;
 				}
+				levels[d + 1] = new long[n];
+				n = 0;
+				for (long id : levels[d])
+					for (long child : kids[(int) id])
+						levels[d + 1][n++] = child;
+			}
+			int top = 1; // root level always goes first
+			for (long n = 1; top < height && n + levels[top].length <= bfsnodes; top++)
+				n += levels[top].length;
+			for (int d = 0; d < top; d++)
+				for (long id : levels[d])
+					assign(id);
+			if (top < height)
+				for (long id : levels[top])
+					if (layout == Layout.VEB)
+						veb(id, height - top);
+					else
+						dfs(id, height - top);
+		}
+
+		private void assign(long id) {
+			newid[(int) id] = count;
+			oldid[count++] = id;
+		}
 
-			} else { // if its not a leaf, put all keys with right children into tovisitStack
-						// starting from the largest key
-				for (int i = curnode.keycount; i > 0; i--) {
-					// push every key with its right child to the stack
-					tovisitStack.addFirst(new KeyRightChild(curnode.keys[i - 1], curnode.children[i]));
+		// subtree of levels levels, node first then the subtrees of its children
+		private void dfs(long id, int levels) {
+			assign(id);
+			if (levels > 1)
+				for (long child : kids[(int) id])
+					dfs(child, levels - 1);
+		}
+
+		// upper levels / 2 levels of the subtree laid out the same way, then every
+		// subtree hanging below them
+		private void veb(long id, int levels) {
+			if (levels == 1) {
+				assign(id);
+				return;
+			}
+			int upper = levels / 2;
+			veb(id, upper);
+			below(id, upper, levels - upper);
+		}
+
+		// lays out the subtrees of levels levels that start depth levels below the node
+		private void below(long id, int depth, int levels) {
+			if (depth == 0)
+				veb(id, levels);
+			else
+				for (long child : kids[(int) id])
+					below(child, depth - 1, levels);
+		}
+
+		long write(String outfname) throws IOException, BTreeWrongBlockID, BTreeBadMetadata {
+			RandomAccessFile file = new RandomAccessFile(outfname, "rw");
+			file.setLength(getNodeOffset(count)); // whole file at once, nodes are written in order
+			NodeStorage out = new FileNodeStorage(file, nodesize, metaDatasize);
+			try {
+				BTreeNode node = new BTreeNode(0, true); // every node passes through this one
+				for (int id = 0; id < count; id++) {
+					node.id = oldid[id];
+					node.loadFromStorage();
+					node.id = id;
+					if (!node.isLeaf)
+						for (int i = 0; i < node.children.length; i++)
+							node.children[i] = i <= node.keycount ? newid[(int) node.children[i]] : -1;
+					else if (linked && node.next >= 0)
+						node.next = newid[(int) node.next];
+					node.writeTo(out);
 				}
-				curnode = getNode(curnode.children[0]); // move on to the very left child
+				out.writeMetaData(metaData(count, 0, flags | FLAG_NO_PARENTS)); // root comes first
+			} finally {
+				out.close(count);
 			}
+			new File(bloomName(outfname)).delete();
+			if (bloom != null) // same keys, only the tree it belongs to is told by node count and root
+				bloom.save(bloomName(outfname), count, 0);
+			return count;
 		}
-		buff.close();
 	}
 
 	public static void main(String[] args) throws IOException, BTreeBadMetadata, BTreeWrongBlockID, BTreeNotFullNode,
@@ -722,8 +2300,11 @@ public class BTree {
 		tmp.IncCounter();
 		tmp.IncCounter();
 		test.insertKey(tmp);
-		test.lookup(new BTreeObject(1000000)).foundkey.IncCounter();
-		test.lookup(new BTreeObject(1000000)).foundkey.IncCounter();
+		for (int i = 0; i < 2; i++) {
+			NearestSearchResult res = test.lookup(new BTreeObject(1000000));
+			res.foundkey.IncCounter();
+			res.saveNode();
+		}
 		// test.insertKey(new BTreeObject(27));
 		/*
 		 * test.insertKey(new BTreeObject(10)); test.insertKey(new BTreeObject(169));
@@ -23,6 +23,12 @@ public class BTreeObject implements Comparable<BTreeObject> {
 		Counter = 0;
 	}
 
+	// key with a known counter, as when loading counted keys
+	public BTreeObject(long key, long counter) {
+		this.key = key;
+		Counter = counter;
+	}
+
 	public void IncCounter() {
 		Counter++; // increments counter by one
 	}
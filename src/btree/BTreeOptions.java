@@ -0,0 +1,130 @@
+package btree;
+
+/**
+ * optional settings for opening or creating a tree, defaults give the original
+ * behaviour
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class BTreeOptions {
+	/*
+	 * node cache eviction policies
+	 */
+	public enum CachePolicy {
+		LRU, // evict the least recently used node, also keeps a lookup map of cached keys
+		CLOCK // second chance eviction over fixed slots, no allocation on hits
+	}
+
+	public boolean mapped = false; // map the tree file into memory instead of seek and read per node
+	public CachePolicy cachepolicy = CachePolicy.CLOCK; // eviction policy of the node cache
+	public long writebehind = 0; // bytes of written nodes a background thread may hold, 0 writes right away
+	public boolean concurrent = false; // read only tree is searched from many threads at once
+	public boolean orderedkeys = false; // new tree holds keys in the order preserving DNA encoding
+	public int seqlen = 0; // sequence length recorded in a new tree, 0 leaves it unknown
+	public boolean linkedleaves = false; // new tree keeps counters only in leaves which are chained for scans
+	public boolean compressed = false; // new tree stores nodes as key differences and varints
+	public boolean canonical = false; // new tree holds one key for a sequence and its reverse complement
+	public boolean maxcounts = false; // new tree keeps subtree maximum counters for top and threshold queries
+	public int hotkeys = 0; // lookup results a read only tree keeps for frequent keys, 0 for none
+	public boolean metrics = false; // keep counters and latency histograms, see BTree.getMetrics
+	public int pinlevels = 0; // top levels a read only tree keeps in memory for good, 0 for no limit
+	public long pinbytes = 0; // memory the pinned levels may take, 0 for no limit, both 0 pin nothing
+
+	public BTreeOptions() {
+	}
+
+	// use memory mapped node storage
+	public BTreeOptions mapped(boolean mapped) {
+		this.mapped = mapped;
+		return this;
+	}
+
+	// node cache eviction policy
+	public BTreeOptions cachePolicy(CachePolicy cachepolicy) {
+		this.cachepolicy = cachepolicy;
+		return this;
+	}
+
+	// hand node writes to a background thread, writers wait only when more than
+	// limit bytes are waiting
+	public BTreeOptions writeBehind(long limit) {
+		this.writebehind = limit;
+		return this;
+	}
+
+	// allow lookups from many threads at once, only for trees opened read only
+	public BTreeOptions concurrent(boolean concurrent) {
+		this.concurrent = concurrent;
+		return this;
+	}
+
+	// record in a new tree that its keys use the order preserving encoding, trees
+	// that are opened tell it from their metadata
+	public BTreeOptions orderedKeys(boolean orderedkeys) {
+		this.orderedkeys = orderedkeys;
+		return this;
+	}
+
+	// create a B+ tree: internal nodes hold only separators, leaves hold all keys
+	// with counters and point to the next leaf
+	public BTreeOptions linkedLeaves(boolean linkedleaves) {
+		this.linkedleaves = linkedleaves;
+		return this;
+	}
+
+	// create a tree with compressed nodes, nodes are filled by encoded size so a
+	// block holds several times the keys of the fixed layout
+	public BTreeOptions compressed(boolean compressed) {
+		this.compressed = compressed;
+		return this;
+	}
+
+	// record in a new tree that its keys are canonical, searches have to look up
+	// queries the same way
+	public BTreeOptions canonical(boolean canonical) {
+		this.canonical = canonical;
+		return this;
+	}
+
+	// create a tree whose internal nodes keep the largest counter below every
+	// child, costs some keys per node
+	public BTreeOptions maxCounts(boolean maxcounts) {
+		this.maxcounts = maxcounts;
+		return this;
+	}
+
+	// keep the results of up to entries frequently looked up keys, only for trees
+	// opened read only. Memory stays fixed whatever the node cache holds
+	public BTreeOptions hotKeys(int entries) {
+		this.hotkeys = entries;
+		return this;
+	}
+
+	// count node reads and writes, cache hits, misses and evictions, splits and
+	// time every lookup and insert. Off it costs one null check per event
+	public BTreeOptions metrics(boolean metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	// keep the top levels of a read only tree in memory apart from the cache,
+	// nothing evicts them. Whole levels are pinned, at most levels of them
+	public BTreeOptions pinLevels(int levels) {
+		this.pinlevels = levels;
+		return this;
+	}
+
+	// limit the memory of the pinned levels to bytes, without pinLevels as many
+	// levels as fit are pinned
+	public BTreeOptions pinBytes(long bytes) {
+		this.pinbytes = bytes;
+		return this;
+	}
+
+	// record the sequence length of the keys in a new tree
+	public BTreeOptions seqLen(int seqlen) {
+		this.seqlen = seqlen;
+		return this;
+	}
+}
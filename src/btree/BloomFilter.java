@@ -0,0 +1,132 @@
+package btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * set of keys that can answer "surely not there" without reading the tree. Every
+ * key sets a few bits picked by hashing it, a key none of whose bits are all set
+ * was never added. Kept next to a tree file as a sidecar together with the node
+ * count and root of the tree it was built from, so a filter of another version of
+ * the tree is not used
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class BloomFilter {
+	private final static int header = 4; // longs before the bits: node count, root id, bits, hashes
+
+	private long[] bits; // bit array, 64 bits per long
+	private long numbits; // bits in the array
+	private int hashes; // bits set per key
+
+	// filter for expected distinct keys with the false positive rate fpp
+	public BloomFilter(long expected, double fpp) {
+		if (fpp <= 0 || fpp >= 1)
+			throw new IllegalArgumentException();
+		expected = Math.max(1, expected);
+		long m = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		numbits = Math.max(64, (m + 63) & ~63L); // whole longs
+		hashes = (int) Math.max(1, Math.round((double) numbits / expected * Math.log(2)));
+		bits = new long[(int) (numbits >>> 6)];
+	}
+
+	private BloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.numbits = (long) bits.length << 6;
+		this.hashes = hashes;
+	}
+
+	// murmur3 finalizer, spreads every key bit over the whole long
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public void add(long key) {
+		long h1 = mix(key), h2 = mix(h1) | 1; // i-th bit from h1 + i * h2
+		for (int i = 0; i < hashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, numbits);
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	// false if key was surely never added
+	public boolean mightContain(long key) {
+		long h1 = mix(key), h2 = mix(h1) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = Math.floorMod(h1 + i * h2, numbits);
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	// bytes of the filter in memory
+	public long size() {
+		return numbits >>> 3;
+	}
+
+	// writes the filter for the tree with nodecount nodes and root rootid
+	public void save(String fname, long nodecount, long rootid) throws IOException {
+		long length = (header + (long) bits.length) * 8;
+		if (length > Integer.MAX_VALUE - 8) // load could not read it back
+			throw new IOException("Bloom filter too large for " + fname);
+		ByteBuffer buf = ByteBuffer.allocate((int) length);
+		LongBuffer l = buf.asLongBuffer();
+		l.put(nodecount);
+		l.put(rootid);
+		l.put(numbits);
+		l.put(hashes);
+		l.put(bits);
+		RandomAccessFile file = new RandomAccessFile(fname, "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			while (buf.hasRemaining()) // a write may move only part of the buffer
+				channel.write(buf, buf.position());
+		} finally {
+			file.close();
+		}
+	}
+
+	// reads the filter of the tree with nodecount nodes and root rootid, null if
+	// there is none or it was written for a different tree
+	public static BloomFilter load(String fname, long nodecount, long rootid) throws IOException {
+		File f = new File(fname);
+		if (!f.isFile() || f.length() < header * 8)
+			return null;
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			long length = file.length();
+			if (length > Integer.MAX_VALUE - 8 || length % 8 != 0)
+				return null; // not a filter this class writes
+			ByteBuffer buf = ByteBuffer.allocate((int) length);
+			FileChannel channel = file.getChannel();
+			while (buf.hasRemaining()) // a read may fill only part of the buffer
+				if (channel.read(buf, buf.position()) < 0)
+					return null; // file got shorter
+			buf.flip();
+			LongBuffer l = buf.asLongBuffer();
+			if (l.get() != nodecount || l.get() != rootid)
+				return null; // tree changed since the filter was written
+			long numbits = l.get();
+			int hashes = (int) l.get();
+			if (numbits != (long) l.remaining() << 6 || hashes < 1)
+				return null;
+			long[] bits = new long[l.remaining()];
+			l.get(bits);
+			return new BloomFilter(bits, hashes);
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * splits command line arguments into positional arguments and named options
+ * of the form --name or --name=value, options may appear anywhere
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class CommandOptions {
+	private ArrayList<String> positional; // arguments that are not options, in original order
+	private HashMap<String, String> named; // options by name, value is empty string for plain flags
+
+	public CommandOptions(String[] args) {
+		positional = new ArrayList<String>();
+		named = new HashMap<String, String>();
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				if (eq < 0)
+					named.put(arg.substring(2), "");
+				else
+					named.put(arg.substring(2, eq), arg.substring(eq + 1));
+			} else
+				positional.add(arg);
+		}
+	}
+
+	// positional arguments as array
+	public String[] positional() {
+		return positional.toArray(new String[positional.size()]);
+	}
+
+	// checks if option was given
+	public boolean has(String name) {
+		return named.containsKey(name);
+	}
+
+	// option value or default if option was not given
+	public String get(String name, String def) {
+		String ret = named.get(name);
+		return ret == null ? def : ret;
+	}
+
+	// option value as int, throws NumberFormatException if not a number
+	public int getInt(String name, int def) {
+		String ret = named.get(name);
+		return ret == null ? def : Integer.parseInt(ret);
+	}
+
+	// option value as double, throws NumberFormatException if not a number
+	public double getDouble(String name, double def) {
+		String ret = named.get(name);
+		return ret == null ? def : Double.parseDouble(ret);
+	}
+
+	// throws IllegalArgumentException if any option is not in the known list
+	public void checkKnown(String... known) {
+		for (String name : named.keySet()) {
+			boolean found = false;
+			for (String k : known) {
+				if (k.equals(name))
+					found = true;
+			}
+			if (!found)
+				throw new IllegalArgumentException("unknown option --" + name);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * sorts a stream of keys that may not fit in memory and counts repeated keys.
+ * Keys are collected in a buffer, every full buffer is sorted and written to a
+ * temporary run file as key and counter pairs, runs are merged at the end
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class ExternalKeySorter {
+	private long[] buffer; // keys collected since the last spill
+	private long[] counts; // counters of the distinct keys once buffer is sorted
+	private int buffered; // number of keys in buffer
+	private File tempdir; // where run files go
+	private ArrayList<File> runs; // run files spilled so far
+	private RunMerger merger; // merger over the runs once finished
+
+	public ExternalKeySorter(int bufferkeys, File tempdir) {
+		if (bufferkeys < 1)
+			throw new IllegalArgumentException();
+		buffer = new long[bufferkeys];
+		counts = new long[bufferkeys];
+		buffered = 0;
+		this.tempdir = tempdir;
+		runs = new ArrayList<File>();
+	}
+
+	// adds one key, spills the buffer to disk when it is full
+	public void add(long key) throws IOException {
+		if (buffered == buffer.length)
+			spill();
+		buffer[buffered++] = key;
+	}
+
+	// sorts the buffer and folds repeated keys in place, returns number of
+	// distinct keys, their counters are stored in counts
+	private int sortAndCount() {
+		Arrays.sort(buffer, 0, buffered);
+		int distinct = 0;
+		for (int i = 0; i < buffered; i++) {
+			if (distinct > 0 && buffer[distinct - 1] == buffer[i]) {
+				counts[distinct - 1]++;
+			} else {
+				buffer[distinct] = buffer[i];
+				counts[distinct++] = 1;
+			}
+		}
+		return distinct;
+	}
+
+	// writes sorted buffer content into a new run file
+	private void spill() throws IOException {
+		int distinct = sortAndCount();
+		runs.add(RunMerger.writeRun(tempdir, buffer, counts, distinct));
+		buffered = 0;
+	}
+
+	// no more keys, returns all keys in ascending order with their counts
+	public KeyCountSource finish() throws IOException {
+		if (runs.isEmpty()) { // everything fits in memory, no merge needed
+			final int distinct = sortAndCount();
+			return new KeyCountSource() {
+				private int pos = -1;
+
+				public boolean next() {
+					return ++pos < distinct;
+				}
+
+				public long key() {
+					return buffer[pos];
+				}
+
+				public long count() {
+					return counts[pos];
+				}
+			};
+		}
+		if (buffered > 0)
+			spill();
+		buffer = null; // merge does not need the buffers any more
+		counts = null;
+		merger = new RunMerger(runs);
+		return merger;
+	}
+
+	// removes the run files
+	public void close() throws IOException {
+		if (merger != null)
+			merger.close();
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+	}
+}
@@ -0,0 +1,154 @@
+package btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * node storage which reads or writes the node at its file position through a
+ * byte buffer of its own. Buffers are handed back after use and reused
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+class FileNodeStorage extends NodeStorage {
+	private final static int prefetch_threads = 4; // reads in flight at once for prefetch
+
+	private ExecutorService readers; // background readers for prefetch, null until the first prefetch
+	private ConcurrentHashMap<Long, Future<ByteBuffer>> ahead; // nodes read ahead and not taken yet
+	private volatile boolean closing; // reads ahead that have not started are skipped
+	private ByteBuffer[] spare = new ByteBuffer[16]; // buffers handed back
+	private int sparecount; // buffers in spare
+
+	FileNodeStorage(RandomAccessFile file, int nodesize, long dataoffset) {
+		super(file, nodesize, dataoffset);
+		ahead = new ConcurrentHashMap<Long, Future<ByteBuffer>>();
+	}
+
+	// background readers, started on first use since most trees never prefetch
+	private synchronized ExecutorService readers() {
+		if (readers == null)
+			readers = Executors.newFixedThreadPool(prefetch_threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "btree-prefetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return readers;
+	}
+
+	@Override
+	void prefetch(final long id) {
+		FutureTask<ByteBuffer> task = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>() {
+			public ByteBuffer call() throws IOException {
+				return closing ? null : read(id);
+			}
+		});
+		if (ahead.putIfAbsent(id, task) == null) // one read per node is enough
+			readers().execute(task);
+	}
+
+	@Override
+	ByteBuffer readNode(long id) throws IOException {
+		Future<ByteBuffer> task = ahead.isEmpty() ? null : ahead.remove(id);
+		if (task == null)
+			return read(id);
+		try { // read ahead, wait for it if still in flight
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	// reads the node block at its file position
+	private ByteBuffer read(long id) throws IOException {
+		ByteBuffer buff = take(); // byte buffer to hold the node
+		long position = nodeOffset(id); // node location in file
+		while (buff.hasRemaining()) { // reads buffer
+			int got = channel.read(buff, position + buff.position());
+			if (got < 0)
+				break;
+		}
+		buff.clear();
+		return buff;
+	}
+
+	@Override
+	ByteBuffer writeNode(long id) throws IOException {
+		long needfilesize = nodeOffset(id + 1); // allocate the file space for the node
+		if (file.length() < needfilesize)
+			file.setLength(needfilesize);
+		ByteBuffer buf = take(); // node is encoded in memory first
+		Arrays.fill(buf.array(), (byte) 0); // bytes after the node are written too
+		return buf;
+	}
+
+	@Override
+	void commitNode(long id, ByteBuffer buf) throws IOException {
+		buf.clear(); // whole node block
+		writeFully(buf, nodeOffset(id)); // write buffer to node location in file
+		release(buf);
+	}
+
+	// a spare buffer or a new one, cleared
+	synchronized ByteBuffer take() {
+		if (sparecount == 0)
+			return ByteBuffer.wrap(new byte[nodesize]);
+		ByteBuffer buf = spare[--sparecount];
+		spare[sparecount] = null;
+		buf.clear();
+		return buf;
+	}
+
+	@Override
+	synchronized void release(ByteBuffer buf) {
+		if (sparecount < spare.length)
+			spare[sparecount++] = buf;
+	}
+
+	@Override
+	void close(long nodecount) throws IOException {
+		ExecutorService running;
+		synchronized (this) {
+			running = readers;
+		}
+		if (running != null) { // let reads in flight finish so no thread reads a closed file
+			closing = true;
+			running.shutdown();
+			try {
+				while (!running.awaitTermination(1, TimeUnit.SECONDS))
+					;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for (Future<ByteBuffer> task : ahead.values()) { // nodes read ahead but never taken
+				try {
+					ByteBuffer buf = task.isDone() ? task.get() : null;
+					if (buf != null)
+						release(buf);
+				} catch (ExecutionException e) {
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			ahead.clear();
+		}
+		file.close();
+	}
+}
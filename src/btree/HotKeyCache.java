@@ -0,0 +1,249 @@
+package btree;
+
+/**
+ * fixed size cache of lookup results, key to counter (-1 for keys not in the tree),
+ * for read only trees. Admission follows W-TinyLFU: new keys enter a small LRU
+ * window, a key falling out of the window only replaces the least recently used
+ * key of the main area if it was asked for more often according to a count-min
+ * sketch of recent lookups. One-off keys therefore can't push out hot ones. The
+ * main area is a segmented LRU, keys hit twice move from probation to protected.
+ * Entries live in parallel arrays linked by index and are found through an open
+ * addressing table, so the memory is allocated once. The keys are spread by hash
+ * over stripes that are caches of their own, each with its own lock, so threads
+ * searching at once seldom wait for each other
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+class HotKeyCache {
+	final static long absent = Long.MIN_VALUE; // get result for keys not in the cache
+
+	private final static int window = 0, probation = 1, protect = 2; // segments
+
+	private Stripe[] stripes; // independent caches by key hash, each one is its own lock
+
+	HotKeyCache(int entries) {
+		if (entries < 2)
+			throw new IllegalArgumentException();
+		int count = Integer.highestOneBit(Math.max(1, Math.min(64, entries / 1024))); // power of two, 1024 entries each
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++)
+			stripes[i] = new Stripe((entries + count - 1) / count);
+	}
+
+	// stripe responsible for the key, picked by the high hash bits, the table in
+	// the stripe uses the low ones
+	private Stripe stripe(long key) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return stripes[(int) (h >>> 58) & (stripes.length - 1)];
+	}
+
+	// counter of the key, absent if not cached. Every call counts as a lookup
+	long get(long key) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.get(key);
+		}
+	}
+
+	// remembers the result of a lookup that missed the cache
+	void put(long key, long count) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.put(key, count);
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/*
+	 * one part of the cache with its own window, main area, table and sketch. Not
+	 * thread safe, the caller holds its lock
+	 */
+	static class Stripe {
+		private long[] keys, counts; // entry key and counter
+		private int[] prev, next; // segment lists, the last three entries are the list heads
+		private byte[] segment; // segment of every entry
+		private int[] sizes = new int[3]; // entries per segment
+		private int heads; // index of the first list head
+		private int[] free; // unused entries
+		private int freecount; // number of unused entries
+		private int[] table; // entry + 1 by hash of the key, 0 for empty slots
+		private int mask; // table size minus one
+		private int windowsize, protectsize, mainsize; // limits
+		private Sketch sketch; // recent lookup frequencies
+
+		Stripe(int entries) {
+			windowsize = Math.max(1, entries / 100); // 1% window, rest is main
+			mainsize = entries - windowsize;
+			protectsize = mainsize * 4 / 5;
+			int n = entries + 1; // window may hold one more until its oldest key is placed
+			keys = new long[n];
+			counts = new long[n];
+			segment = new byte[n];
+			prev = new int[n + 3];
+			next = new int[n + 3];
+			heads = n;
+			for (int s = 0; s < 3; s++)
+				prev[heads + s] = next[heads + s] = heads + s;
+			free = new int[n];
+			for (int i = 0; i < n; i++)
+				free[freecount++] = n - 1 - i;
+			table = new int[Integer.highestOneBit(n * 2 - 1) << 1]; // at most half full
+			mask = table.length - 1;
+			sketch = new Sketch(entries);
+		}
+
+		// counter of the key, absent if not cached. Every call counts as a lookup
+		long get(long key) {
+			sketch.increment(key);
+			int e = find(key);
+			if (e < 0)
+				return absent;
+			if (segment[e] == probation) { // second hit, key is worth protecting
+				unlink(e);
+				link(e, protect);
+				if (sizes[protect] > protectsize) { // oldest protected key gets another chance in probation
+					int old = prev[heads + protect];
+					unlink(old);
+					link(old, probation);
+				}
+			} else { // move to the front of its segment
+				int s = segment[e];
+				unlink(e);
+				link(e, s);
+			}
+			return counts[e];
+		}
+
+		// remembers the result of a lookup that missed the cache
+		void put(long key, long count) {
+			int e = find(key);
+			if (e >= 0) {
+				counts[e] = count;
+				return;
+			}
+			e = free[--freecount];
+			keys[e] = key;
+			counts[e] = count;
+			insert(e);
+			link(e, window);
+			if (sizes[window] <= windowsize)
+				return;
+			int cand = prev[heads + window]; // oldest of the window wants into the main area
+			unlink(cand);
+			if (sizes[probation] + sizes[protect] < mainsize) {
+				link(cand, probation);
+				return;
+			}
+			int victim = sizes[probation] > 0 ? prev[heads + probation] : prev[heads + protect];
+			if (sketch.frequency(keys[cand]) > sketch.frequency(keys[victim])) {
+				unlink(victim);
+				drop(victim);
+				link(cand, probation);
+			} else
+				drop(cand);
+		}
+
+		// entry of the key, -1 if not cached
+		private int find(long key) {
+			for (int i = hash(key) & mask; table[i] != 0; i = (i + 1) & mask)
+				if (keys[table[i] - 1] == key)
+					return table[i] - 1;
+			return -1;
+		}
+
+		private void insert(int e) {
+			int i = hash(keys[e]) & mask;
+			while (table[i] != 0)
+				i = (i + 1) & mask;
+			table[i] = e + 1;
+		}
+
+		// removes the entry from the table and frees it, later keys of its probe run
+		// move back so no lookup stops at the hole
+		private void drop(int e) {
+			int i = hash(keys[e]) & mask;
+			while (table[i] != e + 1)
+				i = (i + 1) & mask;
+			for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+				int home = hash(keys[table[j] - 1]) & mask;
+				if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+					table[i] = table[j];
+					i = j;
+				}
+			}
+			table[i] = 0;
+			free[freecount++] = e;
+		}
+
+		private void link(int e, int s) {
+			int head = heads + s;
+			segment[e] = (byte) s;
+			prev[e] = head;
+			next[e] = next[head];
+			prev[next[head]] = e;
+			next[head] = e;
+			sizes[s]++;
+		}
+
+		private void unlink(int e) {
+			next[prev[e]] = next[e];
+			prev[next[e]] = prev[e];
+			sizes[segment[e]]--;
+		}
+	}
+
+	/*
+	 * count-min sketch with 4 bit counters, 16 to a long. A key has one counter in
+	 * each of four rows and its frequency is the smallest of them. All counters are
+	 * halved after ten lookups per cache entry so old popularity fades
+	 */
+	static class Sketch {
+		private long[] table; // counters of all rows, row r uses the r-th quarter
+		private int rowmask; // counters per row minus one
+		private int additions, resetat; // lookups since last halving, halving limit
+
+		Sketch(int entries) {
+			int row = Integer.highestOneBit(Math.max(16, entries - 1) << 1); // power of two at least entries
+			table = new long[row * 4 / 16];
+			rowmask = row - 1;
+			resetat = 10 * entries;
+		}
+
+		// counter index of the key in row r
+		private int index(long key, int r) {
+			long h = (key + r) * 0x9e3779b97f4a7c15L;
+			h ^= h >>> 29;
+			h *= 0xbf58476d1ce4e5b9L;
+			h ^= h >>> 32;
+			return r * (rowmask + 1) + (int) (h & rowmask);
+		}
+
+		void increment(long key) {
+			for (int r = 0; r < 4; r++) {
+				int i = index(key, r);
+				int shift = (i & 15) << 2;
+				if (((table[i >>> 4] >>> shift) & 0xF) != 0xF) // counters stop at 15
+					table[i >>> 4] += 1L << shift;
+			}
+			if (++additions >= resetat) {
+				for (int i = 0; i < table.length; i++)
+					table[i] = (table[i] >>> 1) & 0x7777777777777777L; // halve every counter
+				additions /= 2;
+			}
+		}
+
+		int frequency(long key) {
+			int min = 15;
+			for (int r = 0; r < 4; r++) {
+				int i = index(key, r);
+				min = Math.min(min, (int) ((table[i >>> 4] >>> ((i & 15) << 2)) & 0xF));
+			}
+			return min;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * counts keys in a primitive hash table of fixed memory before they go to the
+ * tree, so every distinct key reaches the tree once with its total count. When
+ * the table fills up its content is sorted and spilled to a temporary run file
+ * as key and counter pairs, runs are merged at the end
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class KeyCountAggregator {
+	private final static int slot_bytes = 16; // key and counter per slot
+
+	private long[] keys; // keys of the table
+	private long[] counts; // counters of the table, zero marks an empty slot
+	private int mask; // table size - 1, table size is a power of two
+	private int count; // distinct keys in the table
+	private int maxcount; // distinct keys allowed before spilling
+	private File tempdir; // where run files go
+	private ArrayList<File> runs; // run files spilled so far
+	private RunMerger merger; // merger over the runs once finished
+
+	public KeyCountAggregator(long budgetbytes, File tempdir) {
+		long slots = Long.highestOneBit(Math.max(16, Math.min(budgetbytes / slot_bytes, 1 << 30)));
+		keys = new long[(int) slots];
+		counts = new long[(int) slots];
+		mask = (int) slots - 1;
+		maxcount = (int) (slots * 7 / 10); // keep probe chains short
+		count = 0;
+		this.tempdir = tempdir;
+		runs = new ArrayList<File>();
+	}
+
+	// spreads the key bits, neighbouring keys differ only in low bits
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	// counts one more occurrence of the key
+	public void add(long key) throws IOException {
+		add(key, 1);
+	}
+
+	// adds n occurrences of the key, n > 0
+	public void add(long key, long n) throws IOException {
+		int i = slot(key);
+		while (counts[i] != 0) {
+			if (keys[i] == key) {
+				counts[i] += n;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		if (count == maxcount) { // table is full, make room
+			spill();
+			i = slot(key); // table is empty now
+		}
+		keys[i] = key;
+		counts[i] = n;
+		count++;
+	}
+
+	// moves all entries to the front of the arrays sorted by key, the table is no
+	// longer usable as hash table afterwards
+	private void sortEntries() {
+		int n = 0;
+		for (int i = 0; i <= mask; i++) {
+			if (counts[i] != 0) {
+				keys[n] = keys[i];
+				counts[n] = counts[i];
+				if (n != i)
+					counts[i] = 0;
+				n++;
+			}
+		}
+		int[] from = new int[n]; // slot every sorted key came from
+		for (int i = 0; i < n; i++)
+			from[i] = i;
+		KeySort.sort(keys, from, 0, n - 1);
+		for (int i = 0; i < n; i++) { // counters follow their keys, one cycle of the permutation at a time
+			if (from[i] < 0)
+				continue;
+			long first = counts[i];
+			int j = i;
+			while (true) {
+				int k = from[j];
+				from[j] = ~k; // done
+				if (k == i) {
+					counts[j] = first;
+					break;
+				}
+				counts[j] = counts[k];
+				j = k;
+			}
+		}
+	}
+
+	// writes the table content as a sorted run and empties the table
+	private void spill() throws IOException {
+		sortEntries();
+		runs.add(RunMerger.writeRun(tempdir, keys, counts, count));
+		Arrays.fill(counts, 0, count, 0);
+		count = 0;
+	}
+
+	// no more keys, returns every distinct key in ascending order with its count
+	public KeyCountSource finish() throws IOException {
+		if (runs.isEmpty()) { // everything fits in memory, no merge needed
+			sortEntries();
+			final int distinct = count;
+			return new KeyCountSource() {
+				private int pos = -1;
+
+				public boolean next() {
+					return ++pos < distinct;
+				}
+
+				public long key() {
+					return keys[pos];
+				}
+
+				public long count() {
+					return counts[pos];
+				}
+			};
+		}
+		if (count > 0)
+			spill();
+		keys = null; // merge does not need the table any more
+		counts = null;
+		merger = new RunMerger(runs);
+		return merger;
+	}
+
+	// removes the run files
+	public void close() throws IOException {
+		if (merger != null)
+			merger.close();
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+	}
+}
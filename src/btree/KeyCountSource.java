@@ -0,0 +1,20 @@
+package btree;
+
+import java.io.IOException;
+
+/**
+ * stream of key and counter pairs, used to feed the tree in key order
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public interface KeyCountSource {
+	// advances to the next pair, false when there are no more pairs
+	boolean next() throws IOException;
+
+	// key of the current pair
+	long key();
+
+	// counter of the current pair
+	long count();
+}
@@ -0,0 +1,62 @@
+package btree;
+
+/**
+ * sorts long keys and moves an int per key along, the position of the key
+ * before sorting or anything else the caller keeps next to it. Quicksort with
+ * median of three pivots and insertion sort for short ranges, no allocation
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+class KeySort {
+	// sorts keys from lo to hi inclusive and moves the ints in p along
+	static void sort(long[] k, int[] p, int lo, int hi) {
+		while (hi - lo > 16) {
+			int mid = (lo + hi) >>> 1; // median of three as pivot
+			if (k[mid] < k[lo])
+				swap(k, p, mid, lo);
+			if (k[hi] < k[lo])
+				swap(k, p, hi, lo);
+			if (k[hi] < k[mid])
+				swap(k, p, hi, mid);
+			long pivot = k[mid];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (k[i] < pivot)
+					i++;
+				while (k[j] > pivot)
+					j--;
+				if (i <= j)
+					swap(k, p, i++, j--);
+			}
+			if (j - lo < hi - i) { // recurse into the smaller part, loop on the larger
+				sort(k, p, lo, j);
+				lo = i;
+			} else {
+				sort(k, p, i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++) {
+			long key = k[i];
+			int val = p[i];
+			int j = i - 1;
+			while (j >= lo && k[j] > key) {
+				k[j + 1] = k[j];
+				p[j + 1] = p[j];
+				j--;
+			}
+			k[j + 1] = key;
+			p[j + 1] = val;
+		}
+	}
+
+	private static void swap(long[] k, int[] p, int a, int b) {
+		long t = k[a];
+		k[a] = k[b];
+		k[b] = t;
+		int u = p[a];
+		p[a] = p[b];
+		p[b] = u;
+	}
+}
@@ -0,0 +1,91 @@
+package btree;
+
+import java.util.Arrays;
+
+/**
+ * hash map from long to non negative int without boxing. Open addressing with
+ * linear probing, removal shifts following entries back so there are no
+ * tombstones. Capacity is fixed, the map holds up to the size it was created
+ * for
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+class LongIntMap {
+	private long[] keys; // keys of the table
+	private int[] values; // values of the table, -1 marks an empty slot
+	private int mask; // table size - 1, table size is a power of two
+	private int count; // number of entries
+	private int maxcount; // entries allowed
+
+	LongIntMap(int maxcount) {
+		this.maxcount = maxcount;
+		int tablesize = Integer.highestOneBit(Math.max(2, maxcount) * 2 - 1) << 1; // at most half full
+		keys = new long[tablesize];
+		values = new int[tablesize];
+		Arrays.fill(values, -1);
+		mask = tablesize - 1;
+		count = 0;
+	}
+
+	// spreads the key bits so sequential node ids do not cluster
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	// value for the key or -1 if key is not in the map
+	int get(long key) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			if (values[i] < 0)
+				return -1;
+			if (keys[i] == key)
+				return values[i];
+		}
+	}
+
+	// sets the value for the key
+	void put(long key, int value) {
+		int i = slot(key);
+		while (values[i] >= 0) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		if (count == maxcount)
+			throw new IllegalStateException("map is full");
+		keys[i] = key;
+		values[i] = value;
+		count++;
+	}
+
+	// removes the key if it is in the map
+	void remove(long key) {
+		int i = slot(key);
+		while (true) {
+			if (values[i] < 0)
+				return;
+			if (keys[i] == key)
+				break;
+			i = (i + 1) & mask;
+		}
+		values[i] = -1;
+		count--;
+		// move back entries of the probe chain that would not be found past the gap
+		for (int j = (i + 1) & mask; values[j] >= 0; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - i) & mask)) { // home is not between the gap and j
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = -1;
+				i = j;
+			}
+		}
+	}
+
+	int size() {
+		return count;
+	}
+}
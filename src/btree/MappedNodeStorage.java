@@ -0,0 +1,130 @@
+package btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * node storage which maps the node area of the tree file into memory. The file
+ * is mapped in segments holding a whole number of nodes so no node crosses a
+ * segment border, segments are added as the tree grows. Nodes are decoded and
+ * encoded right in the mapped memory so there is no system call per node and
+ * the OS page cache works as the node cache
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+class MappedNodeStorage extends NodeStorage {
+	private final static int def_segmentsize = 64 << 20; // target segment size in bytes
+
+	private boolean readonly; // map read only, no growing
+	private int segmentnodes; // number of nodes per segment
+	private long segmentbytes; // exact segment size in bytes
+	private ArrayList<MappedByteBuffer> segments; // segments mapped so far, null where not mapped yet
+
+	MappedNodeStorage(RandomAccessFile file, int nodesize, long dataoffset, boolean readonly) throws IOException {
+		super(file, nodesize, dataoffset);
+		this.readonly = readonly;
+		segmentnodes = Math.max(1, def_segmentsize / nodesize);
+		segmentbytes = (long) segmentnodes * nodesize;
+		segments = new ArrayList<MappedByteBuffer>();
+		if (readonly) { // file never grows, map it all now so the segment list never changes under readers
+			long nodes = (channel.size() - dataoffset) / nodesize;
+			for (long id = 0; id < nodes; id += segmentnodes)
+				segment(id);
+		}
+	}
+
+	// returns the mapped segment that holds the node, maps it if needed
+	private MappedByteBuffer segment(long id) throws IOException {
+		int segno = (int) (id / segmentnodes);
+		while (segments.size() <= segno)
+			segments.add(null);
+		MappedByteBuffer seg = segments.get(segno);
+		if (seg == null) {
+			long start = dataoffset + segno * segmentbytes;
+			long size = segmentbytes;
+			if (readonly) // read only file never grows, map only what exists
+				size = Math.min(size, channel.size() - start);
+			if (size < nodesize) // node past the end of read only file
+				throw new IOException("node " + id + " is past the end of the tree file");
+			seg = channel.map(readonly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, start, size);
+			segments.set(segno, seg);
+		}
+		return seg;
+	}
+
+	// view of the segment positioned on the node
+	private ByteBuffer nodeView(long id) throws IOException {
+		ByteBuffer view = segment(id).duplicate();
+		int pos = (int) ((id % segmentnodes) * nodesize);
+		view.limit(pos + nodesize);
+		view.position(pos);
+		return view;
+	}
+
+	@Override
+	ByteBuffer readNode(long id) throws IOException {
+		return nodeView(id);
+	}
+
+	@Override
+	ByteBuffer writeNode(long id) throws IOException {
+		if (readonly)
+			throw new IOException("tree file is mapped read only");
+		return nodeView(id); // mapping a read write segment grows the file by itself
+	}
+
+	@Override
+	void commitNode(long id, ByteBuffer buf) {
+		// nothing to do, node was encoded right into the mapped file
+	}
+
+	@Override
+	void close(long nodecount) throws IOException {
+		if (!readonly) {
+			for (MappedByteBuffer seg : segments) {
+				if (seg != null)
+					seg.force(); // push dirty pages to disk
+			}
+			boolean unmapped = true;
+			for (MappedByteBuffer seg : segments) {
+				if (seg != null)
+					unmapped &= unmap(seg);
+			}
+			segments.clear();
+			// segments are mapped whole, cut the file back to the size of the tree. A
+			// file still mapped can't be cut on every system, opening the tree cuts it
+			if (unmapped)
+				channel.truncate(nodeOffset(nodecount));
+		}
+		file.close();
+	}
+
+	// releases the mapping now instead of when the buffer is collected, false if
+	// this JVM offers no way to. The buffer must not be used afterwards
+	private static boolean unmap(MappedByteBuffer seg) {
+		try { // Java 9 and later
+			Class<?> unsafeclass = Class.forName("sun.misc.Unsafe");
+			Field theunsafe = unsafeclass.getDeclaredField("theUnsafe");
+			theunsafe.setAccessible(true);
+			unsafeclass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theunsafe.get(null), seg);
+			return true;
+		} catch (Exception e) {
+		}
+		try { // Java 8
+			Method cleaner = seg.getClass().getMethod("cleaner");
+			cleaner.setAccessible(true);
+			Object c = cleaner.invoke(seg);
+			c.getClass().getMethod("clean").invoke(c);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
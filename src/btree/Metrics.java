@@ -0,0 +1,182 @@
+package btree;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counters and latency histograms of one tree, kept only if the tree was opened
+ * with BTreeOptions.metrics. Counters are LongAdders so threads searching a
+ * concurrent tree don't fight over one cache line. Read them any time or write
+ * them all as one JSON object
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class Metrics {
+	final LongAdder nodereads = new LongAdder(); // nodes read from storage
+	final LongAdder nodewrites = new LongAdder(); // nodes written to storage
+	final LongAdder cachehits = new LongAdder(); // node requests answered by the cache
+	final LongAdder cachemisses = new LongAdder(); // node requests that went to storage
+	final LongAdder pinnedhits = new LongAdder(); // node requests answered by the pinned top levels
+	final LongAdder evictions = new LongAdder(); // nodes pushed out of a full cache
+	final LongAdder splits = new LongAdder(); // full nodes split in two
+	volatile int height; // levels from the root to the leaves
+	final Histogram lookups = new Histogram(); // nanoseconds per tree walk of a lookup
+	final Histogram inserts = new Histogram(); // nanoseconds per inserted or incremented key
+
+	public long nodeReads() {
+		return nodereads.sum();
+	}
+
+	public long nodeWrites() {
+		return nodewrites.sum();
+	}
+
+	public long cacheHits() {
+		return cachehits.sum();
+	}
+
+	public long cacheMisses() {
+		return cachemisses.sum();
+	}
+
+	public long pinnedHits() {
+		return pinnedhits.sum();
+	}
+
+	public long cacheEvictions() {
+		return evictions.sum();
+	}
+
+	public long splits() {
+		return splits.sum();
+	}
+
+	public int height() {
+		return height;
+	}
+
+	public Histogram lookupLatency() {
+		return lookups;
+	}
+
+	public Histogram insertLatency() {
+		return inserts;
+	}
+
+	public String toJSON() {
+		StringBuilder s = new StringBuilder();
+		s.append("{\"nodeReads\":").append(nodeReads());
+		s.append(",\"nodeWrites\":").append(nodeWrites());
+		s.append(",\"cacheHits\":").append(cacheHits());
+		s.append(",\"cacheMisses\":").append(cacheMisses());
+		s.append(",\"pinnedHits\":").append(pinnedHits());
+		s.append(",\"cacheEvictions\":").append(cacheEvictions());
+		s.append(",\"splits\":").append(splits());
+		s.append(",\"height\":").append(height());
+		s.append(",\"lookupNanos\":");
+		lookups.appendJSON(s);
+		s.append(",\"insertNanos\":");
+		inserts.appendJSON(s);
+		return s.append('}').toString();
+	}
+
+	// writes a JSON text to the file, to standard error if fname is empty
+	public static void writeJSON(String fname, String json) throws IOException {
+		if (fname.isEmpty()) {
+			System.err.println(json);
+			return;
+		}
+		Writer out = new FileWriter(fname);
+		try {
+			out.write(json);
+			out.write('\n');
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * log-linear histogram of positive values: values below 16 have a bucket each,
+	 * larger ones share a bucket with values of the same power of two and the same
+	 * three bits after the leading one, so a percentile is within 1/8 of the truth.
+	 * Recording is one array increment, nothing is allocated
+	 */
+	public static class Histogram {
+		private final static int sub = 3; // bits after the leading one that pick the bucket
+		private final AtomicLongArray buckets = new AtomicLongArray(16 + (63 - 4) * (1 << sub));
+		private final LongAdder count = new LongAdder(); // values recorded
+		private final LongAdder sum = new LongAdder(); // sum of the values
+		private final AtomicLong max = new AtomicLong(); // largest value
+
+		// bucket of the value
+		private static int bucket(long v) {
+			if (v < 16)
+				return (int) Math.max(0, v);
+			int e = 63 - Long.numberOfLeadingZeros(v); // position of the leading one, at least 4
+			return 16 + ((e - 4) << sub) + (int) ((v >>> (e - sub)) & ((1 << sub) - 1));
+		}
+
+		// middle value of the bucket
+		private static long middle(int b) {
+			if (b < 16)
+				return b;
+			int e = ((b - 16) >> sub) + 4;
+			long lower = ((long) ((1 << sub) + ((b - 16) & ((1 << sub) - 1)))) << (e - sub);
+			return lower + (1L << (e - sub) >> 1);
+		}
+
+		public void record(long v) {
+			buckets.incrementAndGet(bucket(v));
+			count.increment();
+			sum.add(v);
+			long m;
+			while (v > (m = max.get()) && !max.compareAndSet(m, v))
+				;
+		}
+
+		public long count() {
+			return count.sum();
+		}
+
+		public long max() {
+			return max.get();
+		}
+
+		public double mean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) sum.sum() / n;
+		}
+
+		// value below which the fraction p of the recorded values falls, middle of its
+		// bucket. 0 if nothing was recorded
+		public long percentile(double p) {
+			long n = count.sum();
+			if (n == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(p * n));
+			long seen = 0;
+			for (int b = 0; b < buckets.length(); b++) {
+				seen += buckets.get(b);
+				if (seen >= rank)
+					return Math.min(max.get(), middle(b));
+			}
+			return max.get();
+		}
+
+		void appendJSON(StringBuilder s) {
+			s.append("{\"count\":").append(count());
+			s.append(",\"mean\":").append(Math.round(mean()));
+			s.append(",\"p50\":").append(percentile(0.5));
+			s.append(",\"p90\":").append(percentile(0.9));
+			s.append(",\"p99\":").append(percentile(0.99));
+			s.append(",\"p999\":").append(percentile(0.999));
+			s.append(",\"max\":").append(max());
+			s.append('}');
+		}
+	}
+}
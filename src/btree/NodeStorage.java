@@ -0,0 +1,72 @@
+package btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * physical storage of the tree file: the metadata block followed by fixed size
+ * node blocks. Subclasses decide how a node block is brought into memory
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+abstract class NodeStorage {
+	protected RandomAccessFile file; // the tree file
+	protected FileChannel channel; // channel of the file for positional reads and writes
+	protected int nodesize; // physical node size in bytes
+	protected long dataoffset; // where node zero starts, right after the metadata
+
+	NodeStorage(RandomAccessFile file, int nodesize, long dataoffset) {
+		this.file = file;
+		channel = file.getChannel();
+		this.nodesize = nodesize;
+		this.dataoffset = dataoffset;
+	}
+
+	// calculate the offset of the node in the file
+	long nodeOffset(long id) {
+		return dataoffset + id * nodesize;
+	}
+
+	// current length of the file
+	long length() throws IOException {
+		return file.length();
+	}
+
+	// writes the metadata block to the beginning of the file
+	void writeMetaData(byte[] buf) throws IOException {
+		writeFully(ByteBuffer.wrap(buf), 0);
+	}
+
+	// writes the whole buffer at the file position, does not move the file pointer
+	protected void writeFully(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining())
+			position += channel.write(buf, position);
+	}
+
+	// returns the buffer positioned at the start of the node block, ready to decode
+	abstract ByteBuffer readNode(long id) throws IOException;
+
+	// hands back a buffer of readNode once the node is decoded, storages that
+	// reuse buffers take it back
+	void release(ByteBuffer buf) {
+	}
+
+	// starts reading the node in the background so a later readNode finds it
+	// ready, only for files nobody writes. Storages that gain nothing ignore it
+	void prefetch(long id) {
+	}
+
+	// returns the buffer positioned at the start of the node block, ready to encode
+	// into, the file grows if the node is past its end
+	abstract ByteBuffer writeNode(long id) throws IOException;
+
+	// finishes the write started by writeNode
+	abstract void commitNode(long id, ByteBuffer buf) throws IOException;
+
+	// makes sure everything written so far reaches the disk and closes the file,
+	// nodecount is used to trim the file to the exact size of the tree
+	abstract void close(long nodecount) throws IOException;
+}
@@ -0,0 +1,111 @@
+package btree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * merges sorted run files of key and counter pairs into one sorted stream,
+ * counters of the same key from different runs are added together
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+class RunMerger implements KeyCountSource {
+	/*
+	 * one open run file with its current pair
+	 */
+	class Run implements Comparable<Run> {
+		DataInputStream in;
+		long key, count;
+
+		Run(File f) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+		}
+
+		// reads the next pair, false at the end of run
+		boolean advance() throws IOException {
+			try {
+				key = in.readLong();
+				count = in.readLong();
+				return true;
+			} catch (EOFException e) {
+				in.close();
+				return false;
+			}
+		}
+
+		@Override
+		public int compareTo(Run o) {
+			return Long.compare(key, o.key);
+		}
+	}
+
+	private PriorityQueue<Run> heap; // runs ordered by their current key
+	private long key, count; // current merged pair
+
+	RunMerger(List<File> runs) throws IOException {
+		heap = new PriorityQueue<Run>(Math.max(1, runs.size()));
+		for (File f : runs) {
+			Run r = new Run(f);
+			if (r.advance())
+				heap.add(r);
+		}
+	}
+
+	// writes the first n pairs, sorted by key, into a new temporary run file
+	static File writeRun(File tempdir, long[] keys, long[] counts, int n) throws IOException {
+		File run = File.createTempFile("btree", ".run", tempdir);
+		run.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		for (int i = 0; i < n; i++) {
+			out.writeLong(keys[i]);
+			out.writeLong(counts[i]);
+		}
+		out.close();
+		return run;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if (heap.isEmpty())
+			return false;
+		Run r = heap.poll();
+		key = r.key;
+		count = r.count;
+		if (r.advance())
+			heap.add(r);
+		while (!heap.isEmpty() && heap.peek().key == key) { // same key in other runs
+			r = heap.poll();
+			count += r.count;
+			if (r.advance())
+				heap.add(r);
+		}
+		return true;
+	}
+
+	@Override
+	public long key() {
+		return key;
+	}
+
+	@Override
+	public long count() {
+		return count;
+	}
+
+	// closes whatever runs are still open
+	void close() throws IOException {
+		for (Run r : heap)
+			r.in.close();
+		heap.clear();
+	}
+}
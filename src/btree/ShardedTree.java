@@ -0,0 +1,285 @@
+package btree;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import bterrors.BTreeBadMetadata;
+import bterrors.BTreeWrongBlockID;
+import bterrors.DNAWrongSequenceLength;
+
+/**
+ * keys split by ranges over independent trees, the shards, each in a file of
+ * its own with its own cache, so every shard can be built by a thread of its
+ * own. The ranges end at split points sampled from the keys, so the shards are
+ * about the same size even where the keys crowd part of the key space, like
+ * canonical keys do. The shards in order therefore hold the keys in order. A
+ * small text manifest records the split points and names the shard files. A
+ * single tree can be wrapped as a tree of one shard
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class ShardedTree {
+	private final static String magic = "btree shards"; // first line of a manifest
+
+	private BTree[] shards; // trees by key range
+	private long[] splits; // first key of every shard after the first, ascending
+	private int seqlen; // sequence length of the keys
+
+	// single tree as one shard
+	public ShardedTree(BTree tree) {
+		this.shards = new BTree[] { tree };
+		this.splits = new long[0];
+		this.seqlen = tree.getSeqLen();
+	}
+
+	// shards of keys of length seqlen, built by the caller, split at the given points
+	public ShardedTree(BTree[] shards, int seqlen, long[] splits) {
+		if (splits.length != shards.length - 1)
+			throw new IllegalArgumentException("one split point less than shards needed");
+		this.shards = shards.clone();
+		this.splits = splits.clone();
+		this.seqlen = seqlen;
+	}
+
+	// opens the shards named by the manifest read only, the cache size is shared out
+	// evenly with at least one node per shard
+	public ShardedTree(String manifest, int cachesize, BTreeOptions options)
+			throws IOException, BTreeBadMetadata, BTreeWrongBlockID {
+		ArrayList<String> names = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(manifest));
+		try {
+			String line = in.readLine();
+			if (!magic.equals(line))
+				throw new BTreeBadMetadata();
+			line = in.readLine();
+			if (line == null || !line.startsWith("seqlen "))
+				throw new BTreeBadMetadata();
+			seqlen = Integer.parseInt(line.substring(7).trim());
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("splits")) {
+					String[] points = line.substring(6).trim().split(" +");
+					splits = new long[points[0].isEmpty() ? 0 : points.length];
+					for (int i = 0; i < splits.length; i++)
+						splits[i] = Long.parseLong(points[i]);
+				} else if (!line.trim().isEmpty())
+					names.add(line.trim());
+			}
+		} catch (NumberFormatException e) {
+			throw new BTreeBadMetadata();
+		} finally {
+			in.close();
+		}
+		if (seqlen < 1 || seqlen > 31 || names.isEmpty() || names.size() > 1L << (2 * seqlen))
+			throw new BTreeBadMetadata();
+		if (splits == null) // manifests without split points split the key space evenly
+			splits = evenSplits(seqlen, names.size());
+		if (splits.length != names.size() - 1)
+			throw new BTreeBadMetadata();
+		for (int i = 1; i < splits.length; i++)
+			if (splits[i] < splits[i - 1])
+				throw new BTreeBadMetadata();
+		File dir = new File(manifest).getAbsoluteFile().getParentFile(); // shard names are next to the manifest
+		int shardcache = cachesize > 0 ? Math.max(1, cachesize / names.size()) : 0;
+		shards = new BTree[names.size()];
+		boolean opened = false;
+		try {
+			for (int i = 0; i < shards.length; i++) {
+				shards[i] = new BTree(new File(dir, names.get(i)).getPath(), true, false, shardcache, options);
+				if (shards[i].getSeqLen() != seqlen || shards[i].isOrderedKeys() != shards[0].isOrderedKeys()
+						|| shards[i].isCanonical() != shards[0].isCanonical())
+					throw new BTreeBadMetadata(); // not a shard of the same tree
+			}
+			opened = true;
+		} finally {
+			if (!opened) // the error matters, not how closing the shards went
+				try {
+					shutdown();
+				} catch (IOException e) {
+				}
+		}
+	}
+
+	// split points of shards equal ranges of the keys of length seqlen
+	public static long[] evenSplits(int seqlen, int shards) {
+		long keyspace = 1L << (2 * seqlen);
+		if (shards < 1 || shards > keyspace)
+			throw new IllegalArgumentException("more shards than keys");
+		long[] splits = new long[shards - 1];
+		for (int i = 0; i < splits.length; i++)
+			splits[i] = keyspace / shards * (i + 1);
+		return splits;
+	}
+
+	// true if the file is a manifest of shards rather than a tree
+	public static boolean isManifest(String fname) throws IOException {
+		byte[] head = new byte[magic.length()];
+		RandomAccessFile file = new RandomAccessFile(fname, "r");
+		try {
+			return file.read(head) == head.length && new String(head, "US-ASCII").equals(magic);
+		} finally {
+			file.close();
+		}
+	}
+
+	// writes the manifest naming the shard files, which are looked for next to it
+	public void writeManifest(String fname) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(fname));
+		try {
+			out.write(magic);
+			out.newLine();
+			out.write("seqlen " + seqlen);
+			out.newLine();
+			out.write("splits");
+			for (long split : splits)
+				out.write(" " + split);
+			out.newLine();
+			for (BTree shard : shards) {
+				out.write(new File(shard.getFileName()).getName());
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// shard holding the key, the number of split points not above it
+	public int shard(long key) {
+		int lo = 0, hi = splits.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (splits[mid] <= key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	public BTree getShard(int i) {
+		return shards[i];
+	}
+
+	public int getSeqLen() {
+		return seqlen;
+	}
+
+	public boolean isOrderedKeys() {
+		return shards[0].isOrderedKeys();
+	}
+
+	public boolean isCanonical() {
+		return shards[0].isCanonical();
+	}
+
+	// BTree.lookupCounts over all shards, the keys are grouped by shard and every
+	// shard looks up its group in one pass. Safe from many threads like the shards
+	public void lookupCounts(long[] keys, long[] counts, int lo, int hi)
+			throws BTreeWrongBlockID, BTreeBadMetadata, IOException {
+		if (shards.length == 1) {
+			shards[0].lookupCounts(keys, counts, lo, hi);
+			return;
+		}
+		int n = hi - lo;
+		if (n <= 0)
+			return;
+		int[] start = new int[shards.length + 1]; // first position of every shard's group
+		for (int i = lo; i < hi; i++)
+			start[shard(keys[i]) + 1]++;
+		for (int s = 0; s < shards.length; s++)
+			start[s + 1] += start[s];
+		int[] fill = start.clone();
+		long[] grouped = new long[n]; // keys by shard
+		int[] from = new int[n]; // position in keys of every grouped key
+		for (int i = lo; i < hi; i++) {
+			int p = fill[shard(keys[i])]++;
+			grouped[p] = keys[i];
+			from[p] = i;
+		}
+		long[] found = new long[n];
+		for (int s = 0; s < shards.length; s++)
+			shards[s].lookupCounts(grouped, found, start[s], start[s + 1]);
+		for (int p = 0; p < n; p++)
+			counts[from[p]] = found[p];
+	}
+
+	// BTree.topCounts over all shards, same order: largest first and ascending keys
+	// among equal counters
+	public int topCounts(int n, long[] keys, long[] counts) throws BTreeWrongBlockID, BTreeBadMetadata, IOException {
+		if (shards.length == 1)
+			return shards[0].topCounts(n, keys, counts);
+		long[][] shardkeys = new long[shards.length][n];
+		long[][] shardcounts = new long[shards.length][n];
+		int[] found = new int[shards.length];
+		int[] pos = new int[shards.length]; // next candidate of every shard
+		for (int s = 0; s < shards.length; s++)
+			found[s] = shards[s].topCounts(n, shardkeys[s], shardcounts[s]);
+		int got = 0;
+		for (; got < n; got++) { // merge, the best candidate of all shards is next
+			int best = -1;
+			for (int s = 0; s < shards.length; s++) {
+				if (pos[s] == found[s])
+					continue;
+				if (best < 0 || shardcounts[s][pos[s]] > shardcounts[best][pos[best]]
+						|| (shardcounts[s][pos[s]] == shardcounts[best][pos[best]]
+								&& shardkeys[s][pos[s]] < shardkeys[best][pos[best]]))
+					best = s;
+			}
+			if (best < 0)
+				break;
+			keys[got] = shardkeys[best][pos[best]];
+			counts[got] = shardcounts[best][pos[best]++];
+		}
+		return got;
+	}
+
+	// writes every shard like BTree.dump into one file, which is in key order
+	public void dump(int seqlen, String dumpfname)
+			throws DNAWrongSequenceLength, IOException, BTreeWrongBlockID, BTreeBadMetadata {
+		BufferedWriter buff = new BufferedWriter(new FileWriter(dumpfname));
+		try {
+			for (BTree shard : shards)
+				shard.dump(seqlen, buff);
+		} finally {
+			buff.close();
+		}
+	}
+
+	// metrics of the tree as JSON, one object per shard by shard number if there
+	// is more than one
+	public String metricsJSON() {
+		if (shards.length == 1)
+			return shards[0].getMetrics().toJSON();
+		StringBuilder json = new StringBuilder("{");
+		for (int s = 0; s < shards.length; s++)
+			json.append(s > 0 ? "," : "").append('"').append(s).append("\":").append(shards[s].getMetrics().toJSON());
+		return json.append('}').toString();
+	}
+
+	// shuts down every shard that is open
+	public void shutdown() throws IOException {
+		IOException failure = null;
+		for (BTree shard : shards) {
+			if (shard == null)
+				continue;
+			try {
+				shard.shutdown();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+}
@@ -0,0 +1,42 @@
+package btree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * variable length encoding of unsigned longs, 7 bits per byte with the high bit
+ * set on every byte but the last. Small numbers take one byte, the largest ten
+ *
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+class Varint {
+	final static int max_size = 10; // bytes of the largest number
+
+	// bytes needed for the number
+	static int size(long v) {
+		int n = 1;
+		while ((v & ~0x7FL) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	static void put(ByteBuffer buf, long v) {
+		while ((v & ~0x7FL) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	static long get(ByteBuffer buf) {
+		long v = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = buf.get();
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return v;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * file node storage which hands node writes to a background writer thread.
+ * Committed node buffers wait in the pending map, reads of a pending node are
+ * served from its buffer. The writer takes all pending nodes, sorts them by
+ * node id which is file order, and writes runs of neighbouring nodes with one
+ * gathering write. A committing thread only waits when pending bytes exceed the
+ * limit
+ * 
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+class WriteBehindNodeStorage extends FileNodeStorage {
+	private final static int max_gather = 64; // most nodes in one gathering write
+
+	private HashMap<Long, ByteBuffer> pending; // node buffers waiting to be written by node id
+	private long pendingbytes; // bytes waiting to be written
+	private long[] writingids = new long[0]; // sorted ids of the nodes the writer is writing now
+	private ByteBuffer[] writing = new ByteBuffer[0]; // their buffers, released once written
+	private long limit; // pending bytes allowed before commit waits for the writer
+	private boolean closing; // no more commits, writer finishes and exits
+	private IOException failure; // error hit by the writer, reported to the next caller
+	private Thread writer; // background writer
+
+	WriteBehindNodeStorage(RandomAccessFile file, int nodesize, long dataoffset, long limit) {
+		super(file, nodesize, dataoffset);
+		this.limit = Math.max(limit, nodesize);
+		pending = new HashMap<Long, ByteBuffer>();
+		pendingbytes = 0;
+		closing = false;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "btree-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// rethrows the error of the writer thread in the caller
+	private void checkFailure() throws IOException {
+		if (failure != null)
+			throw new IOException("background write failed", failure);
+	}
+
+	@Override
+	ByteBuffer readNode(long id) throws IOException {
+		synchronized (this) {
+			checkFailure();
+			ByteBuffer buf = pending.get(id);
+			if (buf != null) { // not on disk yet, the pending buffer is the current node
+				ByteBuffer copy = take(); // copy, the reader hands it back when done
+				copy.put(buf.array());
+				copy.clear();
+				return copy;
+			}
+		}
+		return super.readNode(id);
+	}
+
+	@Override
+	ByteBuffer writeNode(long id) {
+		// no explicit growing, RandomAccessFile.setLength moves the shared file
+		// pointer under the writer. Writes past the end grow the file
+		ByteBuffer buf = take();
+		Arrays.fill(buf.array(), (byte) 0);
+		return buf;
+	}
+
+	@Override
+	void commitNode(long id, ByteBuffer buf) throws IOException {
+		synchronized (this) {
+			checkFailure();
+			ByteBuffer old = pending.put(id, buf); // newer buffer replaces one still waiting
+			if (old == null)
+				pendingbytes += nodesize;
+			else if (!isWriting(id, old)) // nobody has it any more
+				release(old);
+			notifyAll(); // wake up the writer
+			try {
+				while (pendingbytes > limit && failure == null) // too much waiting, let the writer catch up
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted waiting for background writer", e);
+			}
+			checkFailure();
+		}
+	}
+
+	// true if the writer is writing buf as node id now, caller holds the lock
+	private boolean isWriting(long id, ByteBuffer buf) {
+		int i = Arrays.binarySearch(writingids, id);
+		return i >= 0 && writing[i] == buf;
+	}
+
+	// writer thread body, writes whatever is pending until closed
+	private void writeLoop() {
+		while (true) {
+			long[] ids;
+			ByteBuffer[] bufs;
+			synchronized (this) {
+				while (pending.isEmpty() && !closing) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (pending.isEmpty())
+					return; // closing and nothing left
+				ids = new long[pending.size()];
+				int n = 0;
+				for (Long id : pending.keySet())
+					ids[n++] = id;
+				Arrays.sort(ids); // file order
+				bufs = new ByteBuffer[ids.length];
+				for (int i = 0; i < ids.length; i++)
+					bufs[i] = pending.get(ids[i]);
+				writingids = ids;
+				writing = bufs;
+			}
+			try {
+				writeSorted(ids, bufs);
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+				}
+				return;
+			}
+			synchronized (this) {
+				writingids = new long[0];
+				writing = new ByteBuffer[0];
+				for (int i = 0; i < ids.length; i++) {
+					if (pending.get(ids[i]) == bufs[i]) { // not replaced while it was written
+						pending.remove(ids[i]);
+						pendingbytes -= nodesize;
+					}
+					release(bufs[i]); // nobody else has it, readers get copies
+				}
+				notifyAll(); // wake up waiting committers
+			}
+		}
+	}
+
+	// writes nodes sorted by id, neighbouring nodes go out in one gathering write
+	private void writeSorted(long[] ids, ByteBuffer[] bufs) throws IOException {
+		ArrayList<ByteBuffer> run = new ArrayList<ByteBuffer>();
+		int start = 0;
+		while (start < ids.length) {
+			run.clear();
+			int end = start;
+			while (end < ids.length && run.size() < max_gather && ids[end] == ids[start] + (end - start)) {
+				ByteBuffer b = bufs[end].duplicate();
+				b.clear();
+				run.add(b);
+				end++;
+			}
+			ByteBuffer[] srcs = run.toArray(new ByteBuffer[run.size()]);
+			// the writer is the only user of the channel position, everything else is
+			// positional
+			channel.position(nodeOffset(ids[start]));
+			long left = (long) srcs.length * nodesize;
+			while (left > 0)
+				left -= channel.write(srcs);
+			start = end;
+		}
+	}
+
+	@Override
+	void close(long nodecount) throws IOException {
+		synchronized (this) {
+			closing = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		checkFailure();
+		if (file.length() < nodeOffset(nodecount)) // writer is gone, safe to grow the file to the tree size
+			file.setLength(nodeOffset(nodecount));
+		super.close(nodecount);
+	}
+}
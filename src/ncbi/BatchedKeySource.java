@@ -0,0 +1,81 @@
+package ncbi;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import bterrors.DNASequenceNotFound;
+/**
+ * keys handed from a reader thread to a consumer on another thread, in batches
+ * through a short queue. The reader ends the keys with finish, an error it ran
+ * into is thrown by Next once the keys before it are used up
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class BatchedKeySource implements DNAKeySource {
+private final static long[] endofdata = new long[0]; //marks the end of batches in the queue
+
+private BlockingQueue<long[]> queue;
+private volatile boolean closed; //consumer went away, reader drops its batches
+private volatile Exception failure; //error of the reader
+private long[] batch; //current batch, null until the first one arrived
+private int batchpos; //next key in current batch
+private boolean nextFound = true; //next sequence is ready
+/*
+ * constructor, queuedbatches is how many batches the reader can be ahead
+ */
+BatchedKeySource(int queuedbatches) {
+	queue = new ArrayBlockingQueue<long[]>(queuedbatches);
+}
+//queues a batch, waits while the consumer is behind unless it went away
+void put(long[] keys) {
+	try {
+		while (!closed && !queue.offer(keys, 100, TimeUnit.MILLISECONDS));
+	} catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	}
+}
+//no more batches, failure is the error that stopped the reader or null
+void finish(Exception failure) {
+	this.failure = failure;
+	put(endofdata);
+}
+//takes batches from the queue until there is a key to hand out or data ends
+private void moveToNext() throws InterruptedException {
+	while (nextFound && batchpos >= batch.length) {
+		batch = queue.take();
+		batchpos = 0;
+		if (batch == endofdata) nextFound = false;
+	}
+}
+//reader for the flag, is next sequence ready, waits for the first batch
+public boolean hasNext() {
+	if (batch == null) {
+		batch = new long[0];
+		try {
+			moveToNext();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			nextFound = false;
+		}
+	}
+	return nextFound || failure != null; //an error is handed out by Next
+}
+//returns the next sequence and moves to the sequence after next if possible
+public long Next() throws DNASequenceNotFound, IOException, InterruptedException {
+	if (!hasNext()) throw new DNASequenceNotFound();
+	if (!nextFound) { //reader stopped on an error
+		if (failure instanceof IOException) throw (IOException) failure;
+		throw new IOException(failure);
+	}
+	long ret = batch[batchpos++];
+	moveToNext(); //trys to obtain next sequence if possible
+	return ret;
+}
+//stops taking keys, the reader no longer waits for this source
+public void close() {
+	closed = true;
+	queue.clear();
+}
+}
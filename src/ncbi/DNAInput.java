@@ -13,7 +13,7 @@ import bterrors.DNAWrongSequenceLength;
  * @author amandadelu, pjcory, joshsanders
  *
  */
-public class DNAInput {
+public class DNAInput implements DNAKeySource {
 private BufferedReader buff; //class to read file
 private char strQ[]; //array to hold characters from each line
 private int strQpos; //current position in that line
@@ -23,8 +23,20 @@ private boolean nextFound, hasData; //next sequence is ready, remaining data at
  * constructor opens file under that filename
  */
 public DNAInput(String fname, int seqlen) throws IOException, DNAWrongSequenceLength, InterruptedException {
+	this(fname, seqlen, false);
+}
+/*
+ * same as above, ordered picks the order preserving key encoding of DNASequence
+ */
+public DNAInput(String fname, int seqlen, boolean ordered) throws IOException, DNAWrongSequenceLength, InterruptedException {
+	this(fname, seqlen, ordered, false);
+}
+/*
+ * same as above, canonical gives a sequence and its reverse complement the same key
+ */
+public DNAInput(String fname, int seqlen, boolean ordered, boolean canonical) throws IOException, DNAWrongSequenceLength, InterruptedException {
 	
-	seqBuilder = new DNASequence(seqlen); //initialize sequence builder for desired length
+	seqBuilder = new DNASequence(seqlen, ordered, canonical); //initialize sequence builder for desired length
 	buff = new BufferedReader(new FileReader(fname)); //open the ncbi file
 	strQ = new char[0]; //initialize the empty current string
 	strQpos = 0; //position to zero
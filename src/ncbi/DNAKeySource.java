@@ -0,0 +1,18 @@
+package ncbi;
+
+import java.io.IOException;
+
+import bterrors.DNASequenceNotFound;
+import bterrors.DNAWrongSequenceLength;
+
+/**
+ * anything that hands out DNA sequence keys one by one in file order
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public interface DNAKeySource {
+	//is next sequence ready
+	boolean hasNext();
+	//returns the next sequence and moves to the sequence after next if possible
+	long Next() throws DNAWrongSequenceLength, DNASequenceNotFound, IOException, InterruptedException;
+}
@@ -39,12 +39,16 @@ public class DNASequence {
 		return 0;
 	}
 	
-	private long acc, leftmost; //sequence accumulator, bit position for new letter
+	private long acc, leftmost, mask; //sequence accumulator, bit position for new letter, bits of the sequence
+	private long revacc; //reverse complement of the sequence in the same encoding
 	private int seqlen, needlen; //length of sequence, remaining num letters still needed
+	private boolean ordered; //first letter in the highest bits, keys sort like the DNA strings
+	private boolean canonical; //sequence and its reverse complement give the same key
 	//getter for accumulator value of the sequence
 	//enforces that sequence needs to be complete
 	public long getDNAKey() throws DNAWrongSequenceLength {
 		if (needlen > 0) throw new DNAWrongSequenceLength();
+		if (canonical) return Math.min(acc, revacc); //the smaller of both strands
 		return acc;
 	}
 	//builds the DNA string that represents the sequence of a given length
@@ -57,6 +61,36 @@ public class DNASequence {
 		}
 		return new String(buf);
 	}
+	//same as above for keys of either encoding
+	public static String getDNAString(int seqlen, long dnakey, boolean ordered) {
+		if (!ordered) return getDNAString(seqlen, dnakey);
+		char[] buf = new char[seqlen];
+		for (int i=seqlen-1; i>=0; i--) {
+			buf[i] = Bin2Let(dnakey);
+			dnakey >>= 2;
+		}
+		return new String(buf);
+	}
+	//turns a key of the original encoding into the order preserving one and back,
+	//both just reverse the order of the letters
+	public static long reverseLetters(int seqlen, long dnakey) {
+		long ret = 0;
+		for (int i=0; i<seqlen; i++) {
+			ret = (ret << 2) | (dnakey & 0b11);
+			dnakey >>= 2;
+		}
+		return ret;
+	}
+	//key of the reverse complement, works for both encodings: reversing the letters
+	//and complementing them (a-t and c-g are bitwise complements)
+	public static long reverseComplement(int seqlen, long dnakey) {
+		return reverseLetters(seqlen, dnakey) ^ ((1L << (seqlen << 1)) - 1);
+	}
+	//the key a canonical DNASequence gives for the sequence of the key or its
+	//reverse complement
+	public static long canonicalKey(int seqlen, long dnakey) {
+		return Math.min(dnakey, reverseComplement(seqlen, dnakey));
+	}
 	//function checking if DNA sequence is complete in length
 	public boolean isComplete() {
 		return needlen == 0;
@@ -64,16 +98,30 @@ public class DNASequence {
 	//stores sequence length
 	//if length is wrong then throw exception
 	public DNASequence(int seqlen) throws DNAWrongSequenceLength {
+		this(seqlen, false);
+	}
+	//ordered puts the first letter into the highest bits so the numeric order of keys
+	//is the alphabetical order of the sequences
+	public DNASequence(int seqlen, boolean ordered) throws DNAWrongSequenceLength {
+		this(seqlen, ordered, false);
+	}
+	//canonical keys count a sequence together with its reverse complement, the
+	//key is the smaller of the two in the chosen encoding
+	public DNASequence(int seqlen, boolean ordered, boolean canonical) throws DNAWrongSequenceLength {
 		if (seqlen < 1 || seqlen > 31) throw new DNAWrongSequenceLength();
 		this.seqlen = seqlen;
+		this.ordered = ordered;
+		this.canonical = canonical;
 		//Alternative, (seqlen - 1) * 2, by how many bits to move 
 		//to insert the new data
 		leftmost = (seqlen - 1) << 1; 
+		mask = (1L << (seqlen << 1)) - 1;
 		reset(); //reset accumulators
 	}
 	//function that resets accumulators
 	public void reset() {
 		acc = 0;
+		revacc = 0;
 		needlen = seqlen;
 	}
 	
@@ -83,7 +131,16 @@ public class DNASequence {
 			//Move the accumulater 2 bits right
 			//discard the rightmost 2 bits and set the leftmost two bits with new data
 			//  // (acc / 4) + (Let2Bin(c) * 2^leftmost)
-			acc = (acc >> 2) | (Let2Bin(c) << leftmost);
+			long bin = Let2Bin(c);
+			if (ordered) //new letter goes to the lowest bits, oldest one drops off the top
+				acc = ((acc << 2) | bin) & mask;
+			else
+				acc = (acc >> 2) | (bin << leftmost);
+			if (canonical) //complement of the new letter is the first letter of the reverse strand
+				if (ordered)
+					revacc = (revacc >> 2) | ((bin ^ 0b11) << leftmost);
+				else
+					revacc = ((revacc << 2) | (bin ^ 0b11)) & mask;
 			switch(needlen) {
 			case 0:
 				break;
@@ -0,0 +1,129 @@
+package ncbi;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+import bterrors.DNAWrongSequenceLength;
+/**
+ * Reads the ncbi file once for several sequence lengths. A reader thread goes
+ * through the ORIGIN sections like DNAInput does, pushing every character to one
+ * DNASequence per length, and hands the keys of every length in batches to its own
+ * source. Every source gives exactly the keys DNAInput gives for that length, in
+ * the same order, and is meant to be consumed on its own thread
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class MultiDNAInput {
+private final static int batchsize = 1 << 16; //keys per batch handed to a source
+private final static int queuedbatches = 4; //batches a source can have waiting
+
+private int[] seqlens; //lengths of sequences
+private BatchedKeySource[] sources; //one source per length
+private Thread reader; //thread reading the file
+/*
+ * constructor opens file under that filename and starts reading it
+ */
+public MultiDNAInput(String fname, int[] seqlens) throws IOException, DNAWrongSequenceLength {
+	this(fname, seqlens, false);
+}
+/*
+ * same as above, ordered picks the order preserving key encoding of DNASequence
+ */
+public MultiDNAInput(String fname, int[] seqlens, boolean ordered) throws IOException, DNAWrongSequenceLength {
+	this(fname, seqlens, ordered, false);
+}
+/*
+ * same as above, canonical gives a sequence and its reverse complement the same key
+ */
+public MultiDNAInput(String fname, int[] seqlens, boolean ordered, boolean canonical) throws IOException, DNAWrongSequenceLength {
+	this.seqlens = seqlens.clone();
+	final DNASequence[] builders = new DNASequence[seqlens.length];
+	sources = new BatchedKeySource[seqlens.length];
+	for (int i = 0; i < seqlens.length; i++) {
+		builders[i] = new DNASequence(seqlens[i], ordered, canonical); //checks the length
+		sources[i] = new BatchedKeySource(queuedbatches);
+	}
+	final BufferedReader buff = new BufferedReader(new FileReader(fname), 1 << 16); //open the ncbi file
+	reader = new Thread(new Runnable() {
+		public void run() {
+			Exception failure = null;
+			try {
+				readAll(buff, builders);
+			} catch (Exception e) { //the sources throw it when they run out of keys
+				failure = e;
+			}
+			for (BatchedKeySource s : sources) {
+				s.finish(failure);
+			}
+		}
+	}, "dna-reader");
+	reader.setDaemon(true);
+	reader.start();
+}
+//number of sequence lengths read
+public int size() {
+	return seqlens.length;
+}
+//sequence length of the i-th source
+public int getSeqLen(int i) {
+	return seqlens[i];
+}
+//keys for the i-th sequence length
+public BatchedKeySource source(int i) {
+	return sources[i];
+}
+//reader thread body, same rules as DNAInput for every builder at once
+private void readAll(BufferedReader buff, DNASequence[] builders) throws IOException, DNAWrongSequenceLength {
+	long[][] batch = new long[builders.length][batchsize];
+	int[] count = new int[builders.length];
+	boolean hasData = ParallelDNAInput.runtoOrigin(buff);
+	while (hasData) {
+		String tmp = buff.readLine();
+		if (tmp==null) { //end of file
+			hasData = false;
+		} else if (tmp.trim().equals("//")) { //end of block, reset and find next ORIGIN
+			for (DNASequence b : builders) b.reset();
+			hasData = ParallelDNAInput.runtoOrigin(buff);
+		} else { //line numbers and spaces are not letters so they are skipped
+			for (int p = 0; p < tmp.length(); p++) {
+				char c = tmp.charAt(p);
+				switch (c) {
+				case 'n':
+				case 'N':
+					for (DNASequence b : builders) b.reset();
+					break;
+				case 'A':
+				case 'a':
+				case 'T':
+				case 't':
+				case 'C':
+				case 'c':
+				case 'G':
+				case 'g':
+					for (int i = 0; i < builders.length; i++) {
+						builders[i].pushCodon(c);
+						if (builders[i].isComplete()) {
+							batch[i][count[i]++] = builders[i].getDNAKey();
+							if (count[i] == batchsize) {
+								sources[i].put(batch[i]);
+								batch[i] = new long[batchsize];
+								count[i] = 0;
+							}
+						}
+					}
+					break;
+				default: //defualt characters ignore
+					break;
+				}
+			}
+		}
+	}
+	for (int i = 0; i < builders.length; i++) {
+		if (count[i] > 0) sources[i].put(Arrays.copyOf(batch[i], count[i]));
+	}
+	buff.close();
+}
+
+}
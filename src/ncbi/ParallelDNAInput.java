@@ -0,0 +1,250 @@
+package ncbi;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import bterrors.DNASequenceNotFound;
+import bterrors.DNAWrongSequenceLength;
+/**
+ * Parallel version of DNAInput. A reader thread cuts the ORIGIN sections of the
+ * file into chunks of raw sequence lines, worker threads turn every chunk into
+ * its sequence keys and the keys come out in batches, one batch per chunk, in
+ * file order. A chunk in the middle of a section starts with the last
+ * seqlen - 1 letters before it (fewer if there was an 'N' or the section
+ * started), so the keys are exactly the same as DNAInput gives
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class ParallelDNAInput implements DNAKeySource {
+private final static int chunksize = 1 << 20; //raw characters per chunk
+private final static long[] endofdata = new long[0]; //marks the end of batches in the queue
+
+private int seqlen; //length of sequence
+private boolean ordered; //order preserving key encoding
+private boolean canonical; //sequence and reverse complement share a key
+private ExecutorService workers; //threads that extract keys from chunks
+private BlockingQueue<Future<long[]>> batches; //batches in file order, limited to keep memory bounded
+private Thread reader; //thread reading the file and cutting chunks
+private long[] batch; //current batch
+private int batchpos; //next key in current batch
+private boolean nextFound; //next sequence is ready
+/*
+ * constructor opens file under that filename and starts reading it with the given
+ * number of worker threads
+ */
+public ParallelDNAInput(final String fname, int seqlen, int threads) throws IOException, DNAWrongSequenceLength, InterruptedException {
+	this(fname, seqlen, threads, false);
+}
+/*
+ * same as above, ordered picks the order preserving key encoding of DNASequence
+ */
+public ParallelDNAInput(final String fname, int seqlen, int threads, boolean ordered) throws IOException, DNAWrongSequenceLength, InterruptedException {
+	this(fname, seqlen, threads, ordered, false);
+}
+/*
+ * same as above, canonical gives a sequence and its reverse complement the same key
+ */
+public ParallelDNAInput(final String fname, int seqlen, int threads, boolean ordered, boolean canonical) throws IOException, DNAWrongSequenceLength, InterruptedException {
+	new DNASequence(seqlen); //checks the length
+	this.seqlen = seqlen;
+	this.ordered = ordered;
+	this.canonical = canonical;
+	workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "dna-parser");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	batches = new ArrayBlockingQueue<Future<long[]>>(threads * 2);
+	final BufferedReader buff = new BufferedReader(new FileReader(fname), 1 << 16); //open the ncbi file
+	reader = new Thread(new Runnable() {
+		public void run() {
+			try {
+				readChunks(buff);
+			} catch (final Exception e) { //hand the error to the consumer
+				putQuietly(workers.submit(new Callable<long[]>() {
+					public long[] call() throws Exception {
+						throw e;
+					}
+				}));
+			}
+			putQuietly(workers.submit(new Callable<long[]>() {
+				public long[] call() {
+					return endofdata;
+				}
+			}));
+			workers.shutdown();
+		}
+	}, "dna-reader");
+	reader.setDaemon(true);
+	reader.start();
+	batch = new long[0];
+	batchpos = 0;
+	nextFound = true;
+	moveToNext(); //try to obtain first sequence
+}
+//queues a batch, gives up only if the consumer went away
+private void putQuietly(Future<long[]> f) {
+	try {
+		batches.put(f);
+	} catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	}
+}
+//reader for the flag, is next sequence ready
+public boolean hasNext() {
+	return nextFound;
+}
+//returns the next sequence and moves to the sequence after next if possible
+public long Next() throws DNASequenceNotFound, IOException, InterruptedException {
+	if (nextFound) {
+		long ret = batch[batchpos++];
+		moveToNext(); //trys to obtain next sequence if possible
+		return ret;
+	} else throw new DNASequenceNotFound();
+}
+//returns all keys of the current batch not handed out yet, null when there are no more keys
+public long[] nextBatch() throws IOException, InterruptedException {
+	if (!nextFound) return null;
+	long[] ret = batchpos == 0 ? batch : Arrays.copyOfRange(batch, batchpos, batch.length);
+	batchpos = batch.length;
+	moveToNext();
+	return ret;
+}
+//takes batches from the queue until there is a key to hand out or data ends
+private void moveToNext() throws IOException, InterruptedException {
+	while (nextFound && batchpos >= batch.length) {
+		try {
+			batch = batches.take().get();
+		} catch (ExecutionException e) {
+			nextFound = false;
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		batchpos = 0;
+		if (batch == endofdata) nextFound = false;
+	}
+}
+//keep reading the file until you encounter the line that contains the word ORIGIN
+static boolean runtoOrigin(BufferedReader buff) throws IOException {
+	String tmp="";
+	while (!tmp.equals("ORIGIN")) {
+		tmp = buff.readLine();
+		if (tmp!=null) {
+			tmp = tmp.trim();
+		} else {
+			break;
+		}
+	}
+	return tmp!=null; //return true if ORIGIN is located
+}
+//reader thread body, cuts every ORIGIN section into chunks and sends them to workers
+private void readChunks(BufferedReader buff) throws IOException, InterruptedException {
+	char[] chunk = new char[chunksize + 256];
+	int len = 0;
+	char[] prefix = new char[0]; //letters carried over from the previous chunk
+	boolean hasData = runtoOrigin(buff);
+	while (hasData) {
+		String tmp = buff.readLine();
+		if (tmp==null) { //end of file
+			hasData = false;
+		} else if (tmp.trim().equals("//")) { //end of block, next section starts fresh
+			dispatch(chunk, len, prefix);
+			chunk = new char[chunk.length];
+			len = 0;
+			prefix = new char[0];
+			hasData = runtoOrigin(buff);
+		} else { //line numbers and spaces are skipped by the workers like DNAInput does
+			if (len + tmp.length() > chunk.length) chunk = Arrays.copyOf(chunk, len + tmp.length());
+			tmp.getChars(0, tmp.length(), chunk, len);
+			len += tmp.length();
+			if (len >= chunksize) {
+				char[] nextprefix = carryOver(chunk, len, prefix);
+				dispatch(chunk, len, prefix);
+				chunk = new char[chunk.length];
+				len = 0;
+				prefix = nextprefix;
+			}
+		}
+	}
+	dispatch(chunk, len, prefix);
+	buff.close();
+}
+//the last seqlen - 1 letters of prefix + chunk that follow the last 'N', the state
+//the next chunk has to start from
+private char[] carryOver(char[] chunk, int len, char[] prefix) {
+	char[] ret = new char[seqlen - 1];
+	int count = 0;
+	int i = len - 1;
+	for (; i >= 0 && count < ret.length; i--) {
+		char c = chunk[i];
+		if (c == 'n' || c == 'N') break;
+		if (isLetter(c)) ret[ret.length - 1 - count++] = c;
+	}
+	if (i < 0) { //chunk had too few letters, the rest comes from its own prefix
+		for (int j = prefix.length - 1; j >= 0 && count < ret.length; j--)
+			ret[ret.length - 1 - count++] = prefix[j];
+	}
+	return Arrays.copyOfRange(ret, ret.length - count, ret.length);
+}
+private static boolean isLetter(char c) {
+	switch (c) {
+	case 'A': case 'a': case 'T': case 't': case 'C': case 'c': case 'G': case 'g':
+		return true;
+	default:
+		return false;
+	}
+}
+//queues the chunk for a worker, waits if consumer is behind
+private void dispatch(final char[] chunk, final int len, final char[] prefix) throws InterruptedException {
+	if (len == 0) return;
+	batches.put(workers.submit(new Callable<long[]>() {
+		public long[] call() throws DNAWrongSequenceLength {
+			return extract(chunk, len, prefix, seqlen, ordered, canonical);
+		}
+	}));
+}
+//builds all the keys of the chunk, same character rules as DNAInput
+static long[] extract(char[] chunk, int len, char[] prefix, int seqlen, boolean ordered, boolean canonical) throws DNAWrongSequenceLength {
+	DNASequence seqBuilder = new DNASequence(seqlen, ordered, canonical);
+	for (char c : prefix) //fewer than seqlen letters, can't complete a sequence
+		seqBuilder.pushCodon(c);
+	long[] keys = new long[len];
+	int count = 0;
+	for (int i = 0; i < len; i++) {
+		char c = chunk[i];
+		switch (c) {
+		case 'n':
+		case 'N':
+			seqBuilder.reset(); //reset if encouter 'N' or 'n'
+			break;
+		case 'A':
+		case 'a':
+		case 'T':
+		case 't':
+		case 'C':
+		case 'c':
+		case 'G':
+		case 'g':
+			seqBuilder.pushCodon(c);
+			if (seqBuilder.isComplete()) keys[count++] = seqBuilder.getDNAKey();
+			break;
+		default: //line numbers, spaces and other characters are ignored
+			break;
+		}
+	}
+	return Arrays.copyOf(keys, count);
+}
+
+}
@@ -0,0 +1,130 @@
+package ncbi;
+
+import java.util.Arrays;
+/**
+ * Splits the keys of one DNAKeySource by key range. A router thread takes the
+ * keys from the input a batch at a time and hands them in batches to the source
+ * of their shard, so every shard can be built on its own thread. The ranges end
+ * at split points taken from the first keys of the input, so the shards come out
+ * about the same size whatever part of the key space the keys crowd. Each source
+ * gives the keys of its shard in the order of the input
+ * @author amandadelu, pjcory, joshsanders
+ *
+ */
+public class ShardedDNAInput {
+private final static int batchsize = 1 << 14; //keys per batch handed to a source
+private final static int queuedbatches = 8; //batches a source can have waiting
+private final static int samplesize = 1 << 18; //first keys the split points are taken from
+
+private BatchedKeySource[] sources; //one source per shard
+private volatile long[] splits; //split points, set before the first key is routed
+private Thread router; //thread reading the input
+/*
+ * constructor starts routing the keys of input into evensplits.length + 1
+ * sources, evensplits are the split points used if the input has no keys
+ */
+public ShardedDNAInput(final DNAKeySource input, final long[] evensplits) {
+	int shards = evensplits.length + 1;
+	sources = new BatchedKeySource[shards];
+	for (int i = 0; i < shards; i++) {
+		sources[i] = new BatchedKeySource(queuedbatches);
+	}
+	router = new Thread(new Runnable() {
+		public void run() {
+			Exception failure = null;
+			try {
+				routeAll(input, evensplits);
+			} catch (Exception e) { //the sources throw it when they run out of keys
+				failure = e;
+			}
+			for (BatchedKeySource s : sources) {
+				s.finish(failure);
+			}
+		}
+	}, "dna-router");
+	router.setDaemon(true);
+	router.start();
+}
+//number of shards
+public int size() {
+	return sources.length;
+}
+//keys of the i-th shard
+public BatchedKeySource source(int i) {
+	return sources[i];
+}
+//split points the keys were routed by, known once any source handed out a key
+//or ended
+public long[] splits() {
+	return splits;
+}
+//keys of the input not routed yet, a whole parsed batch if the input makes them,
+//null when there are no more keys
+private static long[] nextBatch(DNAKeySource input) throws Exception {
+	if (input instanceof ParallelDNAInput) return ((ParallelDNAInput) input).nextBatch();
+	long[] batch = new long[batchsize];
+	int count = 0;
+	while (count < batchsize && input.hasNext()) {
+		batch[count++] = input.Next();
+	}
+	return count == 0 ? null : Arrays.copyOf(batch, count);
+}
+//router thread body, keeps the first keys until the split points are known
+private void routeAll(DNAKeySource input, long[] evensplits) throws Exception {
+	long[][] held = new long[16][];
+	int heldcount = 0;
+	int sampled = 0;
+	long[] keys;
+	while (sampled < samplesize && (keys = nextBatch(input)) != null) {
+		if (heldcount == held.length) held = Arrays.copyOf(held, heldcount * 2);
+		held[heldcount++] = keys;
+		sampled += keys.length;
+	}
+	long[] sample = new long[sampled];
+	int n = 0;
+	for (int i = 0; i < heldcount; i++) {
+		System.arraycopy(held[i], 0, sample, n, held[i].length);
+		n += held[i].length;
+	}
+	Arrays.sort(sample);
+	long[] points = evensplits.clone();
+	for (int i = 0; sampled > 0 && i < points.length; i++) { //every shard gets the same share of the sample
+		points[i] = sample[(int) ((long) sampled * (i + 1) / sources.length)];
+	}
+	splits = points;
+	sample = null;
+
+	long[][] batch = new long[sources.length][batchsize];
+	int[] count = new int[sources.length];
+	for (int i = 0; i < heldcount; i++) {
+		route(held[i], batch, count);
+		held[i] = null;
+	}
+	while ((keys = nextBatch(input)) != null) {
+		route(keys, batch, count);
+	}
+	for (int i = 0; i < sources.length; i++) {
+		if (count[i] > 0) sources[i].put(Arrays.copyOf(batch[i], count[i]));
+	}
+}
+//adds every key to the batch of its shard, full batches go to their source
+private void route(long[] keys, long[][] batch, int[] count) {
+	long[] points = splits;
+	for (long key : keys) {
+		int lo = 0, hi = points.length; //shard is the number of split points not above the key
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (points[mid] <= key) lo = mid + 1;
+			else hi = mid;
+		}
+		int s = lo;
+		batch[s][count[s]++] = key;
+		if (count[s] == batchsize) {
+			sources[s].put(batch[s]);
+			batch[s] = new long[batchsize];
+			count[s] = 0;
+		}
+	}
+}
+
+}